@@ -0,0 +1,95 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Random;
+
+/**
+ * Checks that the table driven {@link CRCgenerator} gives the same results as
+ * the bit-serial algorithm of the TMC5161 datasheet, which it replaced. Every
+ * one of the 65,536 pairs of CRC and data byte is compared, and so are the
+ * checksums of random reply datagrams. Run with:
+ *
+ * <pre>
+ * java se.quickcool.coolingdevice.IO.steppermotordriver.CRCgeneratorCheck
+ * </pre>
+ * <p>
+ * The exit status is 1 if any result differs.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class CRCgeneratorCheck {
+	private static final byte CRC8_GEN = 0x07; // CRC generator polynomial
+	private static final int DATAGRAMS = 100000;
+
+	private CRCgeneratorCheck() {
+	}
+
+	public static void main(String[] args) {
+		int failures = 0;
+		for (int crc = 0; crc < 256; crc++) {
+			for (int data = 0; data < 256; data++) {
+				byte expected = nextCRC((byte) crc, (byte) data);
+				byte actual = CRCgenerator.nextCRC((byte) crc, (byte) data);
+				if (actual != expected) {
+					System.out.printf("nextCRC(0x%02X, 0x%02X): expected 0x%02X, got 0x%02X%n", crc, data,
+							expected, actual);
+					failures++;
+				}
+			}
+		}
+
+		Random random = new Random(5161);
+		byte[] datagram = new byte[DatagramEncoder.REPLY_LENGTH];
+		for (int i = 0; i < DATAGRAMS; i++) {
+			random.nextBytes(datagram);
+			byte expected = runCRCcheck(datagram);
+			if (CRCgenerator.runCRCcheck(datagram) != expected
+					|| CRCgenerator.crc(datagram, 0, DatagramEncoder.REPLY_LENGTH - 1) != expected) {
+				System.out.println("runCRCcheck differs for " + HexFormatter.formatFrame(datagram));
+				failures++;
+			}
+		}
+
+		if (failures > 0) {
+			System.out.println(failures + " results differ");
+			System.exit(1);
+		}
+		System.out.println("65536 CRC and data byte pairs and " + DATAGRAMS + " datagrams match");
+	}
+
+	/*
+	 * The bit-serial algorithm as it was used before the lookup table.
+	 */
+
+	private static byte nextCRC(byte crc, byte data) {
+		byte temp = crc;
+
+		for (int i = 0; i <= 7; i++) {
+			temp = nextCRCSingle(temp, data, CRC8_GEN, (byte) i);
+		}
+
+		return temp;
+	}
+
+	private static byte runCRCcheck(byte[] replyPackage) {
+		byte crc = 0;
+		for (int i = 0; i < 7; i++) {
+			crc = nextCRC(crc, replyPackage[i]);
+		}
+		return crc;
+	}
+
+	private static byte nextCRCSingle(byte crc, byte data, byte gen, byte bit) {
+		byte compare;
+
+		compare = (byte) (Byte.toUnsignedInt(data) << (7 - Byte.toUnsignedInt(bit)));
+		compare = (byte) (Byte.toUnsignedInt(compare) & 0x80);
+
+		if (((Byte.toUnsignedInt(crc) & 0x80) ^ (Byte.toUnsignedInt(compare))) != 0) {
+			return (byte) ((Byte.toUnsignedInt(crc) << 1) ^ Byte.toUnsignedInt(gen));
+		} else {
+			return (byte) (Byte.toUnsignedInt(crc) << 1);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmarks of the protocol hot paths, so that every change to the
+ * protocol layer can be judged with numbers. Every benchmark is warmed up and
+ * then run for a fixed time; the throughput in operations per second and the
+ * memory allocated per operation by the benchmark thread are printed.
+ * <p>
+ * The round trip benchmarks run against a {@link TMC5161Emulator}, so no
+ * hardware is needed. The benchmark lives in the bench source folder and is
+ * not part of the driver itself. Run with:
+ * </p>
+ *
+ * <pre>
+ * java se.quickcool.coolingdevice.IO.steppermotordriver.ProtocolBenchmark [seconds per benchmark]
+ * </pre>
+ * <p>
+ * <b>Note:</b> Allocation is measured through the HotSpot extension of
+ * ThreadMXBean and is reported as n/a on other runtimes. Output that the
+ * measured code prints is discarded while a benchmark runs.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class ProtocolBenchmark {
+	/**
+	 * The code under test. The invocation number varies the input so that the
+	 * work cannot be hoisted out of the loop.
+	 */
+	private interface Operation {
+		/**
+		 * @param invocation number of the invocation
+		 * @return any result of the operation, consumed by the benchmark
+		 */
+		int run(int invocation) throws Exception;
+	}
+
+	private static final int BATCH = 1000; // invocations between two clock readings
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	private static volatile int sink; // keeps the results alive
+
+	private ProtocolBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long measureNanos = TimeUnit.SECONDS.toNanos(args.length > 0 ? Long.parseLong(args[0]) : 2);
+		PrintStream out = System.out;
+		out.printf("%-40s %15s %15s%n", "Benchmark", "ops/s", "bytes/op");
+
+		byte[] reply = reply(RegisterAccess.DRV_STATUS, 0x800F01F4);
+		byte[] velocityReply = reply(RegisterAccess.VACTUAL, 0x0001F400);
+		DatagramEncoder encoder = new DatagramEncoder((byte) 0);
+		PackageAnalyzer analyzer = new PackageAnalyzer();
+
+		run(out, "CRCgenerator.nextCRC", measureNanos, i -> CRCgenerator.nextCRC((byte) i, (byte) (i >>> 8)));
+		byte[] crcInput = reply.clone();
+		run(out, "CRCgenerator.runCRCcheck", measureNanos, i -> {
+			crcInput[6] = (byte) i;
+			return CRCgenerator.runCRCcheck(crcInput);
+		});
+		run(out, "DatagramEncoder.encodeWriteAccess", measureNanos,
+				i -> encoder.encodeWriteAccess(RegisterAccess.XTARGET, i)[7]);
+		run(out, "PackageAnalyzer.analyzeReplyPackage", measureNanos,
+				i -> (i & 1) == 0 ? analyzer.analyzeReplyPackage(StepperMotor.DRIVER_ERROR_STATUS, reply)
+						: analyzer.analyzeReplyPackage(StepperMotor.ACTUAL_VELOCITY_STATUS, velocityReply));
+		run(out, "HexFormatter.formatFrame", measureNanos, i -> HexFormatter.formatFrame(reply).length());
+		StringBuilder text = new StringBuilder(64);
+		run(out, "HexFormatter.appendFrame", measureNanos, i -> {
+			text.setLength(0);
+			return HexFormatter.appendFrame(text, reply, 0, reply.length).length();
+		});
+
+		run(out, "DriverLog.frame (level INFO)", measureNanos, i -> {
+			DriverLog.frame(LogLevel.TRACE, "Sent bytes:", reply, 0, reply.length);
+			return i;
+		});
+		LogAppender appender = DriverLog.getAppender();
+		RingBufferAppender ring = new RingBufferAppender(new ConsoleAppender(DISCARD), 1 << 16);
+		DriverLog.setAppender(ring);
+		DriverLog.setLevel(LogLevel.TRACE);
+		try {
+			run(out, "DriverLog.frame (TRACE, ring buffer)", measureNanos, i -> {
+				DriverLog.frame(LogLevel.TRACE, "Sent bytes:", reply, 0, reply.length);
+				return i;
+			});
+		} finally {
+			ring.close();
+			DriverLog.setAppender(appender);
+			DriverLog.setLevel(LogLevel.INFO);
+		}
+		out.println("(ring buffer dropped " + ring.getDroppedCount() + " messages)");
+
+		Path recording = Files.createTempFile("tmc5161", ".rec");
+		try (FlightRecorder recorder = new FlightRecorder(recording, 1 << 16)) {
+			FlightRecorder.Channel channel = recorder.channel("benchmark");
+			run(out, "FlightRecorder reply", measureNanos, i -> {
+				channel.replyReceived((byte) 0, reply, true);
+				return i;
+			});
+		} finally {
+			Files.delete(recording);
+		}
+
+		StepperMotorBus bus = new StepperMotorBus(new TMC5161Emulator());
+		try {
+			bus.open();
+			MotorDriverCommunication mdc = bus.getCommunication(0);
+			StepperMotor motor = bus.getMotor(0);
+			run(out, "sendWriteAccessPackage (emulator)", measureNanos, i -> {
+				mdc.sendWriteAccessPackage(RegisterAccess.XTARGET, i); // a new value every time, never skipped
+				return i;
+			});
+			run(out, "sendReadAccessPackage (emulator)", measureNanos,
+					i -> mdc.sendReadAccessPackage(RegisterAccess.IFCNT)[6]);
+			byte[] status = { RegisterAccess.VACTUAL, RegisterAccess.DRV_STATUS, RegisterAccess.XACTUAL,
+					RegisterAccess.RAMP_STAT };
+			run(out, "4 x sendReadAccessPackage (emulator)", measureNanos, i -> {
+				int result = 0;
+				for (byte registerAddress : status) {
+					result += mdc.sendReadAccessPackage(registerAddress)[6];
+				}
+				return result;
+			});
+			run(out, "sendReadAccessPackages x4 (emulator)", measureNanos,
+					i -> mdc.sendReadAccessPackages(status)[3][6]);
+			run(out, "checkMotorStatus (emulator)", measureNanos, i -> {
+				motor.checkMotorStatus();
+				return i;
+			});
+		} finally {
+			bus.close();
+		}
+	}
+
+	private static void run(PrintStream out, String name, long measureNanos, Operation operation) throws Exception {
+		System.setOut(DISCARD);
+		long invocations;
+		long elapsed;
+		long allocated;
+		try {
+			measure(operation, measureNanos / 2); // warm up
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			invocations = measure(operation, measureNanos);
+			elapsed = System.nanoTime() - start;
+			allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+		} finally {
+			System.setOut(out);
+		}
+		out.printf("%-40s %15.0f %15s%n", name, invocations * 1e9 / elapsed,
+				allocated < 0 ? "n/a" : String.format("%.1f", (double) allocated / invocations));
+	}
+
+	private static long measure(Operation operation, long durationNanos) throws Exception {
+		long invocations = 0;
+		int result = 0;
+		long end = System.nanoTime() + durationNanos;
+		do {
+			for (int i = 0; i < BATCH; i++) {
+				result += operation.run((int) invocations + i);
+			}
+			invocations += BATCH;
+		} while (System.nanoTime() < end);
+		sink = result;
+		return invocations;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far, or -1 if the runtime
+	 *         does not tell
+	 */
+	private static long allocatedBytes() {
+		try {
+			return HotSpotAllocation.currentThread();
+		} catch (LinkageError e) {
+			return -1; // the runtime has no com.sun.management
+		}
+	}
+
+	/**
+	 * The only code that refers to the HotSpot extension, so that the benchmark
+	 * loads and runs on runtimes without it.
+	 */
+	private static final class HotSpotAllocation {
+		static long currentThread() {
+			java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean hotSpot = (com.sun.management.ThreadMXBean) threads;
+				if (hotSpot.isThreadAllocatedMemorySupported() && hotSpot.isThreadAllocatedMemoryEnabled()) {
+					return hotSpot.getThreadAllocatedBytes(Thread.currentThread().getId());
+				}
+			}
+			return -1;
+		}
+	}
+
+	private static byte[] reply(byte registerAddress, int value) {
+		byte[] reply = { DatagramEncoder.SYNC_BYTE, DatagramEncoder.MASTER_ADDRESS, registerAddress,
+				(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value, 0 };
+		reply[7] = CRCgenerator.runCRCcheck(reply);
+		return reply;
+	}
+}
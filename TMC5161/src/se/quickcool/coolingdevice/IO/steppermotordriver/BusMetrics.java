@@ -0,0 +1,270 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * This class collects the traffic statistics of one bus and of every motor
+ * driver on it, and publishes them as MXBeans on the platform MBean server
+ * while the bus is open, so they can be watched with JConsole, VisualVM or any
+ * other JMX client.
+ * <p>
+ * The I/O thread of the bus records every datagram it sends, every reply it
+ * matches, every corrupted reply to a request on the wire and every request
+ * that times out. The receive side counters are kept
+ * by the {@link ReplyDecoder}, which sees every byte that arrives. Recording
+ * only increments preallocated counters and histogram buckets.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class BusMetrics implements BusMetricsMXBean {
+	private static final String DOMAIN = "se.quickcool.coolingdevice";
+
+	private final String portName;
+	private final ReplyDecoder replyDecoder;
+	private final IntSupplier pendingRequests;
+	private final AtomicReferenceArray<MotorMetrics> motors = new AtomicReferenceArray<>(256);
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong datagramsSent = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong unmatchedReplies = new AtomicLong();
+	private final List<ObjectName> registered = new ArrayList<>(); // names this bus owns on the MBean server
+	private boolean published; // publication requested, i.e. the bus is open
+	private boolean live; // the MBeans are registered
+
+	/**
+	 * @param portName        name of the serial port or transport of the bus
+	 * @param replyDecoder    decoder that counts the received bytes
+	 * @param pendingRequests current number of datagrams queued on the bus
+	 */
+	BusMetrics(String portName, ReplyDecoder replyDecoder, IntSupplier pendingRequests) {
+		this.portName = portName;
+		this.replyDecoder = replyDecoder;
+		this.pendingRequests = pendingRequests;
+	}
+
+	/**
+	 * Records Write Access datagrams handed to the serial port.
+	 *
+	 * @param buf    back-to-back encoded datagrams
+	 * @param length number of bytes sent
+	 */
+	void writesSent(byte[] buf, int length) {
+		bytesSent.addAndGet(length);
+		for (int i = 0; i + DatagramEncoder.WRITE_ACCESS_LENGTH <= length; i += DatagramEncoder.WRITE_ACCESS_LENGTH) {
+			datagramsSent.incrementAndGet();
+			motor(buf[i + 1]).writeSent(buf[i + 2] & 0x7F);
+		}
+	}
+
+	/**
+	 * Records a Read Access request handed to the serial port.
+	 *
+	 * @param length number of bytes sent
+	 */
+	void requestSent(int length) {
+		bytesSent.addAndGet(length);
+		datagramsSent.incrementAndGet();
+	}
+
+	void replyReceived(byte slaveAddress, byte registerAddress, long latencyNanos) {
+		motor(slaveAddress).replyReceived(registerAddress & 0x7F, latencyNanos);
+	}
+
+	void timedOut(byte slaveAddress, byte registerAddress) {
+		timeouts.incrementAndGet();
+		motor(slaveAddress).timedOut(registerAddress & 0x7F);
+	}
+
+	void crcFailure(byte slaveAddress, byte registerAddress) {
+		motor(slaveAddress).crcFailure(registerAddress & 0x7F);
+	}
+
+	void unmatchedReply() {
+		unmatchedReplies.incrementAndGet();
+	}
+
+	/**
+	 * Returns the statistics of a motor driver, creating and publishing them the
+	 * first time the driver is seen on the bus.
+	 *
+	 * @param slaveAddress slave address of the driver
+	 * @return statistics of the driver
+	 */
+	MotorMetrics motor(byte slaveAddress) {
+		int index = slaveAddress & 0xFF;
+		MotorMetrics metrics = motors.get(index);
+		if (metrics == null) {
+			metrics = createMotor(index);
+		}
+		return metrics;
+	}
+
+	private synchronized MotorMetrics createMotor(int index) {
+		MotorMetrics metrics = motors.get(index);
+		if (metrics == null) {
+			metrics = new MotorMetrics(index);
+			motors.set(index, metrics);
+			if (live) {
+				register(metrics, motorName(index));
+			}
+		}
+		return metrics;
+	}
+
+	/**
+	 * Registers the statistics of the bus and of every driver seen so far with
+	 * the platform MBean server. The first use of the platform MBean server in a
+	 * process takes hundreds of milliseconds, so the registration is done in the
+	 * background and does not hold up the opening of the bus. Failures are logged,
+	 * they never keep the bus from working.
+	 */
+	synchronized void publish() {
+		if (published) {
+			return;
+		}
+		published = true;
+		Thread publisher = new Thread(this::registerAll, "TMC5161 metrics " + portName);
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	private void registerAll() {
+		ManagementFactory.getPlatformMBeanServer(); // the slow part, done without holding the lock
+		synchronized (this) {
+			if (!published || live) {
+				return; // the bus has been closed in the meantime
+			}
+			live = true;
+			register(this, busName());
+			for (int i = 0; i < motors.length(); i++) {
+				MotorMetrics metrics = motors.get(i);
+				if (metrics != null) {
+					register(metrics, motorName(i));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the statistics of the bus and its drivers from the platform MBean
+	 * server. The statistics themselves are kept.
+	 */
+	synchronized void unpublish() {
+		if (!published) {
+			return;
+		}
+		published = false;
+		live = false;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			try {
+				server.unregisterMBean(name);
+			} catch (JMException | RuntimeException e) {
+				DriverLog.warn("Could not unpublish " + name + ": " + e);
+			}
+		}
+		registered.clear();
+	}
+
+	@Override
+	public String getPortName() {
+		return portName;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return replyDecoder.getReceivedBytes();
+	}
+
+	@Override
+	public long getDatagramsSent() {
+		return datagramsSent.get();
+	}
+
+	@Override
+	public long getRepliesReceived() {
+		return replyDecoder.getDeliveredReplies();
+	}
+
+	@Override
+	public long getCrcFailures() {
+		return replyDecoder.getCrcFailures();
+	}
+
+	@Override
+	public long getSyncErrors() {
+		return replyDecoder.getSyncErrors();
+	}
+
+	@Override
+	public long getTimeoutCount() {
+		return timeouts.get();
+	}
+
+	@Override
+	public long getUnmatchedReplies() {
+		return unmatchedReplies.get();
+	}
+
+	@Override
+	public int getPendingRequests() {
+		return pendingRequests.getAsInt();
+	}
+
+	@Override
+	public LatencyStatistics getReadLatency() {
+		LatencyHistogram total = new LatencyHistogram();
+		for (int i = 0; i < motors.length(); i++) {
+			MotorMetrics metrics = motors.get(i);
+			if (metrics != null) {
+				metrics.addLatencies(total);
+			}
+		}
+		return total.getStatistics();
+	}
+
+	@Override
+	public void resetLatencies() {
+		for (int i = 0; i < motors.length(); i++) {
+			MotorMetrics metrics = motors.get(i);
+			if (metrics != null) {
+				metrics.resetLatencies();
+			}
+		}
+	}
+
+	private String busName() {
+		return DOMAIN + ":type=StepperMotorBus,name=" + ObjectName.quote(String.valueOf(portName));
+	}
+
+	private String motorName(int slaveAddress) {
+		return DOMAIN + ":type=MotorMetrics,bus=" + ObjectName.quote(String.valueOf(portName)) + ",slave="
+				+ slaveAddress;
+	}
+
+	private void register(Object mbean, String name) {
+		try {
+			ObjectName objectName = new ObjectName(name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+			registered.add(objectName);
+		} catch (JMException | RuntimeException e) {
+			DriverLog.warn("Could not publish " + name + ": " + e); // e.g. two buses with the same name
+		}
+	}
+}
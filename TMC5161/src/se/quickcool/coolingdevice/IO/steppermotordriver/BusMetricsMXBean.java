@@ -0,0 +1,74 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Management interface of the traffic statistics of one bus. Registered with
+ * the platform MBean server as
+ * <code>se.quickcool.coolingdevice:type=StepperMotorBus,name=&lt;port&gt;</code>
+ * while the bus is open. A growing number of pending requests together with a
+ * rising latency shows that the bus is saturated before requests start to time
+ * out. Counters only ever grow; the latency histograms can be reset.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public interface BusMetricsMXBean {
+	/**
+	 * @return name of the serial port or transport of the bus
+	 */
+	String getPortName();
+
+	/**
+	 * @return number of bytes handed to the serial port
+	 */
+	long getBytesSent();
+
+	/**
+	 * @return number of bytes received from the serial port, echoes included
+	 */
+	long getBytesReceived();
+
+	/**
+	 * @return number of datagrams sent, write accesses and read requests
+	 */
+	long getDatagramsSent();
+
+	/**
+	 * @return number of reply packages with a valid CRC byte
+	 */
+	long getRepliesReceived();
+
+	/**
+	 * @return number of candidate datagrams that failed their CRC check
+	 */
+	long getCrcFailures();
+
+	/**
+	 * @return number of bytes skipped because no datagram started with them
+	 */
+	long getSyncErrors();
+
+	/**
+	 * @return number of Read Access requests that were not answered in time
+	 */
+	long getTimeoutCount();
+
+	/**
+	 * @return number of replies that arrived after their request had expired
+	 */
+	long getUnmatchedReplies();
+
+	/**
+	 * @return number of datagrams waiting to be sent or waiting for a reply
+	 */
+	int getPendingRequests();
+
+	/**
+	 * @return latency of the Read Access requests to any driver on the bus
+	 */
+	LatencyStatistics getReadLatency();
+
+	/**
+	 * Forgets the recorded latencies of the bus and all of its drivers.
+	 */
+	void resetLatencies();
+}
@@ -0,0 +1,389 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is the I/O thread of one serial port. Every datagram that goes out
+ * on the port, write accesses as well as read requests, is queued here and sent
+ * by this thread in the order it was queued. Each port has a worker of its own
+ * and workers share no state with each other, so traffic on different ports
+ * proceeds fully in parallel.
+ * <p>
+ * The UART interface is half duplex, hence after a read request the worker waits
+ * for the reply before the next datagram is sent. A reply is matched to the
+ * request on the wire by its register address and completes the future of that
+ * request. Late replies to requests that have already expired are ignored
+ * rather than handed to the wrong caller. The TMC always replies with the
+ * master address 0xFF, so on a bus with several slaves the reply itself does not
+ * tell which slave sent it; since only one request is on the wire at a time, the
+ * reply belongs to the slave recorded in the pending request.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+class BusWorker implements Runnable {
+	/**
+	 * One or more Write Access datagrams waiting to be sent. The caller waits for
+	 * the future so that its buffer can be reused afterwards.
+	 */
+	static final class PendingWrite {
+		final byte registerAddress;
+		final byte[] buf;
+		final int length;
+		final boolean batch;
+		final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+		PendingWrite(byte registerAddress, byte[] buf, int length, boolean batch) {
+			this.registerAddress = registerAddress;
+			this.buf = buf;
+			this.length = length;
+			this.batch = batch;
+		}
+	}
+
+	/**
+	 * A Read Access request that is waiting to be sent or waiting for its reply.
+	 */
+	static final class PendingRead {
+		final byte slaveAddress;
+		final byte registerAddress;
+		final byte[] requestDatagram;
+		final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+		long transmitNanos;
+
+		PendingRead(byte slaveAddress, byte registerAddress, byte[] requestDatagram) {
+			this.slaveAddress = slaveAddress;
+			this.registerAddress = registerAddress;
+			this.requestDatagram = requestDatagram;
+		}
+	}
+
+	private final SerialTransport transport;
+	private final BusMetrics metrics;
+	private final long timeoutNanos;
+	private final String threadName;
+
+	private final ArrayDeque<Object> queue = new ArrayDeque<>(); // PendingWrite and PendingRead in send order
+	private volatile FlightRecorder.Channel recorder; // null if the traffic is not recorded
+	private PendingRead inFlight; // read request waiting for its reply
+	private long inFlightDeadline;
+	private boolean running;
+	private Thread thread;
+
+	/**
+	 * @param transport     link that the datagrams are sent through
+	 * @param metrics       statistics that every datagram is recorded in
+	 * @param timeoutMillis maximum time to wait for a reply after a read request
+	 * @param threadName    name of the I/O thread
+	 */
+	BusWorker(SerialTransport transport, BusMetrics metrics, long timeoutMillis, String threadName) {
+		this.transport = transport;
+		this.metrics = metrics;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		this.threadName = threadName;
+	}
+
+	/**
+	 * Starts the I/O thread. Datagrams can only be queued while it is running.
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the I/O thread. Reads still waiting for a reply fail with a
+	 * CommunicationException, writes that have not been sent yet fail as well.
+	 */
+	void stop() {
+		Thread stopped = abandon(new CommunicationException("Serial port closed"));
+		if (stopped != null && stopped != Thread.currentThread()) {
+			try {
+				stopped.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Marks the worker as stopped and fails the read on the wire and every
+	 * datagram still queued.
+	 *
+	 * @param cause exception the futures are completed with
+	 * @return the I/O thread, or null if the worker was not running
+	 */
+	private Thread abandon(CommunicationException cause) {
+		List<Object> abandoned = new ArrayList<>();
+		Thread stopped;
+		synchronized (this) {
+			if (!running) {
+				return null;
+			}
+			running = false;
+			if (inFlight != null) {
+				abandoned.add(inFlight);
+				inFlight = null;
+			}
+			abandoned.addAll(queue);
+			queue.clear();
+			stopped = thread;
+			thread = null;
+			notifyAll();
+		}
+		for (Object job : abandoned) {
+			if (job instanceof PendingRead) {
+				((PendingRead) job).reply.completeExceptionally(cause);
+			} else {
+				((PendingWrite) job).sent.completeExceptionally(cause);
+			}
+		}
+		return stopped;
+	}
+
+	/**
+	 * Queues a Read Access request.
+	 *
+	 * @param slaveAddress    slave that the request is addressed to
+	 * @param registerAddress The address of the register that is to be read from
+	 * @param requestDatagram the encoded request
+	 * @return future that is completed with the reply package, or exceptionally
+	 *         with a CommunicationException if no reply arrives in time
+	 */
+	CompletableFuture<byte[]> submitRead(byte slaveAddress, byte registerAddress, byte[] requestDatagram) {
+		PendingRead request = new PendingRead(slaveAddress, (byte) (registerAddress & 0x7F), requestDatagram);
+		synchronized (this) {
+			if (running) {
+				queue.addLast(request);
+				notifyAll();
+				return request.reply;
+			}
+		}
+		request.reply.completeExceptionally(new CommunicationException("Serial port is not open"));
+		return request.reply;
+	}
+
+	/**
+	 * Queues several Read Access requests to one slave as a single group. The
+	 * requests are queued back-to-back, so no other datagram is sent in between,
+	 * and each is put on the wire the moment the reply to the previous one has
+	 * arrived. The single wire interface is half duplex, so the requests can not
+	 * overlap with the replies on the wire itself.
+	 *
+	 * @param slaveAddress     slave that the requests are addressed to
+	 * @param registerAddress  the addresses of the registers that are to be read
+	 * @param requestDatagrams the encoded requests, in the same order
+	 * @return futures completed with the reply packages, in the same order
+	 */
+	List<CompletableFuture<byte[]>> submitReads(byte slaveAddress, byte[] registerAddress,
+			byte[][] requestDatagrams) {
+		List<CompletableFuture<byte[]>> replies = new ArrayList<>(registerAddress.length);
+		List<PendingRead> requests = new ArrayList<>(registerAddress.length);
+		for (int i = 0; i < registerAddress.length; i++) {
+			PendingRead request = new PendingRead(slaveAddress, (byte) (registerAddress[i] & 0x7F),
+					requestDatagrams[i]);
+			requests.add(request);
+			replies.add(request.reply);
+		}
+		synchronized (this) {
+			if (running) {
+				queue.addAll(requests);
+				notifyAll();
+				return replies;
+			}
+		}
+		CommunicationException closed = new CommunicationException("Serial port is not open");
+		for (PendingRead request : requests) {
+			request.reply.completeExceptionally(closed);
+		}
+		return replies;
+	}
+
+	/**
+	 * Queues Write Access datagrams and waits until they have been sent.
+	 *
+	 * @param registerAddress register of a single write, only used for logging
+	 * @param buf             encoded datagrams
+	 * @param length          number of bytes to send
+	 * @param batch           true if buf holds several back-to-back datagrams
+	 * @throws CommunicationException if the bus is not open, is closed before the
+	 *                                datagrams have been sent or the serial port
+	 *                                failed to send them
+	 */
+	void submitWrite(byte registerAddress, byte[] buf, int length, boolean batch) throws CommunicationException {
+		PendingWrite write = new PendingWrite(registerAddress, buf, length, batch);
+		synchronized (this) {
+			if (!running) {
+				throw new CommunicationException("Serial port is not open");
+			}
+			queue.addLast(write);
+			notifyAll();
+		}
+		try {
+			write.sent.join();
+		} catch (CompletionException e) {
+			throw new CommunicationException(e.getCause().getLocalizedMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Hands a reply package received from the TMC to the request that is
+	 * currently on the wire.
+	 *
+	 * @param replyPackage a complete reply package with a valid CRC byte
+	 */
+	void replyReceived(byte[] replyPackage) {
+		long now = System.nanoTime();
+		PendingRead completed;
+		synchronized (this) {
+			if (inFlight == null || inFlight.registerAddress != (replyPackage[2] & 0x7F)) {
+				completed = null; // unsolicited or late reply
+			} else {
+				completed = inFlight;
+				inFlight = null;
+				notifyAll();
+			}
+		}
+		FlightRecorder.Channel recorder = this.recorder;
+		if (recorder != null) {
+			recorder.replyReceived(completed != null ? completed.slaveAddress : DatagramEncoder.MASTER_ADDRESS,
+					replyPackage, true);
+		}
+		if (completed == null) {
+			metrics.unmatchedReply();
+			return;
+		}
+		metrics.replyReceived(completed.slaveAddress, completed.registerAddress, now - completed.transmitNanos);
+		completed.reply.complete(replyPackage);
+	}
+
+	/**
+	 * Charges a reply package that failed its CRC check to the request that is
+	 * currently on the wire, since the corrupted bytes themselves can not be
+	 * trusted to tell the register. The request is left to time out.
+	 *
+	 * @param replyPackage corrupted reply package, only valid during the call
+	 */
+	void corruptReplyReceived(byte[] replyPackage) {
+		PendingRead current;
+		synchronized (this) {
+			current = inFlight;
+		}
+		if (current != null) {
+			metrics.crcFailure(current.slaveAddress, current.registerAddress);
+		}
+		FlightRecorder.Channel recorder = this.recorder;
+		if (recorder != null) {
+			recorder.replyReceived(current != null ? current.slaveAddress : DatagramEncoder.MASTER_ADDRESS,
+					replyPackage, false);
+		}
+	}
+
+	/**
+	 * @param recorder recording that every datagram is added to, or null to stop
+	 *                 recording
+	 */
+	void setRecorder(FlightRecorder.Channel recorder) {
+		this.recorder = recorder;
+	}
+
+	synchronized int getPendingCount() {
+		return queue.size() + (inFlight != null ? 1 : 0);
+	}
+
+	@Override
+	public void run() {
+		boolean interrupted = false;
+		while (true) {
+			Object job = null;
+			PendingRead expired = null;
+			synchronized (this) {
+				try {
+					while (running && (inFlight != null || queue.isEmpty())) {
+						if (inFlight == null) {
+							wait();
+							continue;
+						}
+						long remaining = inFlightDeadline - System.nanoTime();
+						if (remaining <= 0) {
+							expired = inFlight;
+							inFlight = null;
+							break;
+						}
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+				if (!running) {
+					return;
+				}
+				if (interrupted) {
+					break;
+				}
+				if (expired == null) {
+					job = queue.pollFirst();
+					if (job instanceof PendingRead) {
+						inFlight = (PendingRead) job;
+						inFlight.transmitNanos = System.nanoTime();
+						inFlightDeadline = inFlight.transmitNanos + timeoutNanos;
+					}
+				}
+			}
+
+			FlightRecorder.Channel recorder = this.recorder;
+			if (expired != null) {
+				metrics.timedOut(expired.slaveAddress, expired.registerAddress);
+				if (recorder != null) {
+					recorder.timedOut(expired.slaveAddress, expired.registerAddress);
+				}
+				expired.reply.completeExceptionally(new CommunicationException("Waiting time expired: no reply answer"));
+			} else if (job instanceof PendingRead) {
+				PendingRead read = (PendingRead) job;
+				if (recorder != null) {
+					recorder.requestSent(read.slaveAddress, read.registerAddress); // before the reply can arrive
+				}
+				try {
+					transport.readAccess(read.registerAddress, read.requestDatagram);
+					metrics.requestSent(read.requestDatagram.length);
+				} catch (RuntimeException e) {
+					synchronized (this) {
+						if (inFlight == read) {
+							inFlight = null;
+						}
+					}
+					read.reply.completeExceptionally(new CommunicationException("Failed to send request: " + e, e));
+				}
+			} else {
+				PendingWrite write = (PendingWrite) job;
+				try {
+					if (write.batch) {
+						transport.writeBatch(write.buf, write.length);
+					} else {
+						transport.writeAccess(write.registerAddress, write.buf);
+					}
+					metrics.writesSent(write.buf, write.length);
+					if (recorder != null) {
+						recorder.writesSent(write.buf, write.length);
+					}
+					write.sent.complete(null);
+				} catch (RuntimeException e) {
+					write.sent.completeExceptionally(new CommunicationException("Failed to send datagram: " + e, e));
+				}
+			}
+		}
+		// without its I/O thread the bus can not go on; nobody must wait for it
+		abandon(new CommunicationException("I/O thread of " + threadName + " was interrupted"));
+	}
+}
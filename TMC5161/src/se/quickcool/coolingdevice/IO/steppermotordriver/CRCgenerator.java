@@ -2,6 +2,13 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
 
 /**
  * This class contains static functions that computes CRC checksums.
+ * <p>
+ * The checksum is computed with a 256-entry lookup table instead of shifting
+ * through every bit of every byte. The table is generated once, at class
+ * loading, from the bit-serial algorithm given in the TMC5161 datasheet so that
+ * both always produce identical results. CRCgeneratorCheck in the bench folder
+ * compares the table with the bit-serial algorithm for every CRC and data byte.
+ * </p>
  * 
  * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
  * @version 1.0
@@ -9,6 +16,27 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
 class CRCgenerator {
 	private static final byte CRC8_GEN = 0x07; // CRC generator polynomial
 
+	/*
+	 * The TMC shifts the data bits in LSB first while the CRC register itself is
+	 * shifted towards its MSB. Hence the table is indexed with the CRC xor the
+	 * bit-reversed data byte.
+	 */
+	private static final byte[] CRC_TABLE = new byte[256];
+	private static final byte[] REVERSED = new byte[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			REVERSED[i] = (byte) (Integer.reverse(i) >>> 24);
+		}
+		for (int i = 0; i < 256; i++) {
+			byte temp = (byte) i;
+			for (int bit = 0; bit <= 7; bit++) {
+				temp = nextCRCSingle(temp, (byte) 0, CRC8_GEN, (byte) bit);
+			}
+			CRC_TABLE[i] = temp;
+		}
+	}
+
 	/**
 	 * Computes CRC of data input parameter.
 	 * 
@@ -17,13 +45,24 @@ class CRCgenerator {
 	 * @return result of computation
 	 */
 	static byte nextCRC(byte crc, byte data) {
-		byte temp = crc;
+		return CRC_TABLE[(crc ^ REVERSED[data & 0xFF]) & 0xFF];
+	}
 
-		for (int i = 0; i <= 7; i++) {
-			temp = nextCRCSingle(temp, data, CRC8_GEN, (byte) i);
+	/**
+	 * Computes the CRC of <i>len</i> bytes of a datagram starting at <i>off</i>.
+	 * 
+	 * @param data datagram bytes
+	 * @param off  index of the first byte (normally the sync byte)
+	 * @param len  number of bytes to include, i.e. the datagram length without
+	 *             the CRC byte itself
+	 * @return computed CRC byte
+	 */
+	static byte crc(byte[] data, int off, int len) {
+		int crc = 0;
+		for (int i = off, end = off + len; i < end; i++) {
+			crc = CRC_TABLE[(crc ^ REVERSED[data[i] & 0xFF]) & 0xFF];
 		}
-
-		return temp;
+		return (byte) crc;
 	}
 
 	/**
@@ -36,15 +75,7 @@ class CRCgenerator {
 	 * @return computed CRC byte
 	 */
 	static byte runCRCcheck(byte[] replyPackage) {
-		byte CRC = 0;
-		CRC = nextCRC(CRC, replyPackage[0]);
-		CRC = nextCRC(CRC, replyPackage[1]);
-		CRC = nextCRC(CRC, replyPackage[2]);
-		CRC = nextCRC(CRC, replyPackage[3]);
-		CRC = nextCRC(CRC, replyPackage[4]);
-		CRC = nextCRC(CRC, replyPackage[5]);
-		CRC = nextCRC(CRC, replyPackage[6]);
-		return CRC;
+		return crc(replyPackage, 0, 7);
 	}
 
 	private static byte nextCRCSingle(byte crc, byte data, byte gen, byte bit) {
@@ -20,6 +20,18 @@ public class CommunicationException extends Exception {
 		this.communicationErrorDescription = communicationErrorDescription;
 	}
 
+	/**
+	 * Creates an exception caused by another one, e.g. a failure of the serial
+	 * port.
+	 * 
+	 * @param communicationErrorDescription Description of the error message
+	 * @param cause                         the exception that caused this one
+	 */
+	public CommunicationException(String communicationErrorDescription, Throwable cause) {
+		super(communicationErrorDescription, cause);
+		this.communicationErrorDescription = communicationErrorDescription;
+	}
+
 	/**
 	 * Return a description of the error that this type of exception represents.
 	 * 
@@ -0,0 +1,47 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.PrintStream;
+
+/**
+ * Writes every message to the console as soon as it is logged, which is what
+ * the driver did before it had a logger. Datagram bytes are appended to the
+ * message in brackets.
+ * <p>
+ * Writing to the console blocks the logging thread. Wrap this appender in a
+ * {@link RingBufferAppender} to keep the console out of the communication with
+ * the TMC.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class ConsoleAppender implements LogAppender {
+	private final PrintStream out; // null for whatever System.out currently is
+
+	/**
+	 * Creates an appender that writes to System.out.
+	 */
+	public ConsoleAppender() {
+		this(null);
+	}
+
+	/**
+	 * @param out stream the messages are written to
+	 */
+	public ConsoleAppender(PrintStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void append(long timeMillis, LogLevel level, String message, byte[] frame, int off, int len) {
+		PrintStream out = this.out != null ? this.out : System.out;
+		if (frame == null) {
+			out.println(message);
+			return;
+		}
+		StringBuilder sb = new StringBuilder(message.length() + 3 + len * 6);
+		sb.append(message).append(" [");
+		HexFormatter.appendFrame(sb, frame, off, len).append(']');
+		out.println(sb);
+	}
+}
@@ -0,0 +1,123 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class encodes the UART-datagrams that are sent to one TMC5161 slave. The
+ * datagram structure is specified in the TMC5161 datasheet.
+ * <p>
+ * Write access datagrams are encoded into a single buffer that is reused for
+ * every write. Read access requests only depend on the slave address and the
+ * register address, hence all 128 of them are computed once when the encoder is
+ * created. Encoding a datagram therefore never allocates any memory.
+ * </p>
+ * <p>
+ * <b>Note:</b> The returned arrays are shared. A write access buffer is only
+ * valid until the next call to {@link #encodeWriteAccess(byte, long)} and a
+ * read access request must never be modified.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+class DatagramEncoder {
+	static final byte SYNC_BYTE = 0x05; // sync nibble 0b0101 + reserved bits
+	static final byte MASTER_ADDRESS = (byte) 0xFF; // slave address field of every reply datagram
+	static final int WRITE_ACCESS_LENGTH = 8, READ_ACCESS_LENGTH = 4, REPLY_LENGTH = 8;
+	static final int NUMBER_OF_REGISTERS = 128; // register addresses are 7 bits wide
+
+	private final byte slaveAddress;
+	private final byte[] writeBuffer = new byte[WRITE_ACCESS_LENGTH];
+	private final byte[][] readAccessRequests = new byte[NUMBER_OF_REGISTERS][];
+
+	/**
+	 * Creates an encoder for the slave with the given address and precomputes the
+	 * read access requests for all of its registers.
+	 *
+	 * @param slaveAddress UART slave address of the TMC5161
+	 */
+	DatagramEncoder(byte slaveAddress) {
+		this.slaveAddress = slaveAddress;
+		writeBuffer[0] = SYNC_BYTE;
+		writeBuffer[1] = slaveAddress;
+		for (int i = 0; i < NUMBER_OF_REGISTERS; i++) {
+			byte[] request = new byte[READ_ACCESS_LENGTH];
+			encodeReadAccess(request, 0, slaveAddress, (byte) i);
+			readAccessRequests[i] = request;
+		}
+	}
+
+	/**
+	 * Returns the slave address that this encoder puts into its datagrams.
+	 *
+	 * @return UART slave address
+	 */
+	byte getSlaveAddress() {
+		return slaveAddress;
+	}
+
+	/**
+	 * Encodes a <i>Write Access</i> datagram into the reusable write buffer of
+	 * this encoder.
+	 *
+	 * @param registerAddress The address of the register that is to be written to
+	 * @param datagram        32-bit data value which to be written to the register
+	 *                        address
+	 * @return the write buffer holding the complete 8 byte datagram
+	 */
+	byte[] encodeWriteAccess(byte registerAddress, long datagram) {
+		encodeWriteAccess(writeBuffer, 0, slaveAddress, registerAddress, datagram);
+		return writeBuffer;
+	}
+
+	/**
+	 * Returns the precomputed <i>Read Access</i> request for a register.
+	 *
+	 * @param registerAddress The address of the register that is to be read from
+	 * @return the 4 byte request datagram
+	 */
+	byte[] readAccessRequest(byte registerAddress) {
+		return readAccessRequests[registerAddress & 0x7F];
+	}
+
+	/**
+	 * Encodes a <i>Write Access</i> datagram at an arbitrary offset of a buffer.
+	 * <p>
+	 * <b>Note:</b> The TMC5161 takes a 64-bit data package for Write Access: 8
+	 * sync + reserved, 8 slave address, 8 register address, 32-bit data, 8 CRC
+	 * </p>
+	 *
+	 * @param buf             destination buffer, at least 8 bytes from off
+	 * @param off             index of the sync byte in the buffer
+	 * @param slaveAddress    UART slave address of the TMC5161
+	 * @param registerAddress The address of the register that is to be written to
+	 * @param datagram        32-bit data value
+	 */
+	static void encodeWriteAccess(byte[] buf, int off, byte slaveAddress, byte registerAddress, long datagram) {
+		buf[off] = SYNC_BYTE;
+		buf[off + 1] = slaveAddress;
+		buf[off + 2] = (byte) (registerAddress | 0x80); // Add 0x80 to the reg.addr. for write accesses!
+		buf[off + 3] = (byte) (datagram >> 24);
+		buf[off + 4] = (byte) (datagram >> 16);
+		buf[off + 5] = (byte) (datagram >> 8);
+		buf[off + 6] = (byte) datagram;
+		buf[off + 7] = CRCgenerator.crc(buf, off, WRITE_ACCESS_LENGTH - 1);
+	}
+
+	/**
+	 * Encodes a <i>Read Access</i> request at an arbitrary offset of a buffer.
+	 * <p>
+	 * <b>Note:</b> The TMC5161 takes a 32-bit data package for Read Access: 8 sync
+	 * + reserved, 8 slave address, 8 register address, 8 CRC
+	 * </p>
+	 *
+	 * @param buf             destination buffer, at least 4 bytes from off
+	 * @param off             index of the sync byte in the buffer
+	 * @param slaveAddress    UART slave address of the TMC5161
+	 * @param registerAddress The address of the register that is to be read from
+	 */
+	static void encodeReadAccess(byte[] buf, int off, byte slaveAddress, byte registerAddress) {
+		buf[off] = SYNC_BYTE;
+		buf[off + 1] = slaveAddress;
+		buf[off + 2] = (byte) (registerAddress & 0x7F);
+		buf[off + 3] = CRCgenerator.crc(buf, off, READ_ACCESS_LENGTH - 1);
+	}
+}
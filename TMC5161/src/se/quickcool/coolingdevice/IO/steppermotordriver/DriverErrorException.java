@@ -10,6 +10,7 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
  */
 public class DriverErrorException extends Exception {
 	private String driverErrorMsg;
+	private MotorFault fault;
 
 	/**
 	 * Constructor creates an instance of this class which takes as an input
@@ -21,6 +22,26 @@ public class DriverErrorException extends Exception {
 		this.driverErrorMsg = driverErrorMsg;
 	}
 
+	/**
+	 * Creates an exception for a fault found by a status check of the motor.
+	 * 
+	 * @param fault the fault
+	 */
+	public DriverErrorException(MotorFault fault) {
+		this(fault.getMessage());
+		this.fault = fault;
+	}
+
+	/**
+	 * Returns the fault that this exception reports, so that callers do not need
+	 * to compare the error message.
+	 * 
+	 * @return the fault, or null if the error was not found by a status check
+	 */
+	public MotorFault getFault() {
+		return fault;
+	}
+
 	/**
 	 * Return a description of the error that this type of exception represents.
 	 * 
@@ -0,0 +1,136 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * The logger of the motor driver. Every message has a {@link LogLevel}; messages
+ * below the current level are dropped before anything is formatted, at the
+ * cost of one comparison. Messages that would need a string to be built should
+ * be guarded with {@link #isEnabled(LogLevel)}, datagrams are passed as bytes
+ * and only formatted by the appender.
+ * <p>
+ * By default messages from {@link LogLevel#INFO} upwards are written directly to
+ * the console. For frame level tracing in production, lower the level to
+ * {@link LogLevel#TRACE} and log through a {@link RingBufferAppender}, which
+ * never blocks the communication with the TMC:
+ * </p>
+ *
+ * <pre>
+ * DriverLog.setAppender(new RingBufferAppender(new ConsoleAppender(), 4096));
+ * DriverLog.setLevel(LogLevel.TRACE);
+ * </pre>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class DriverLog {
+	private static volatile LogLevel level = LogLevel.INFO;
+	private static volatile LogAppender appender = new ConsoleAppender();
+
+	private DriverLog() {
+	}
+
+	/**
+	 * @param level lowest level that is logged, {@link LogLevel#OFF} to log
+	 *              nothing
+	 */
+	public static void setLevel(LogLevel level) {
+		DriverLog.level = level;
+	}
+
+	/**
+	 * @return lowest level that is logged
+	 */
+	public static LogLevel getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param appender receives every message that is logged
+	 */
+	public static void setAppender(LogAppender appender) {
+		DriverLog.appender = appender;
+	}
+
+	/**
+	 * @return the appender that receives every message that is logged
+	 */
+	public static LogAppender getAppender() {
+		return appender;
+	}
+
+	/**
+	 * @param messageLevel level of a message
+	 * @return true if messages of the level are logged
+	 */
+	public static boolean isEnabled(LogLevel messageLevel) {
+		return messageLevel.compareTo(level) >= 0 && messageLevel != LogLevel.OFF;
+	}
+
+	/**
+	 * Logs a message.
+	 *
+	 * @param messageLevel level of the message
+	 * @param message      the message
+	 */
+	public static void log(LogLevel messageLevel, String message) {
+		if (isEnabled(messageLevel)) {
+			appender.append(System.currentTimeMillis(), messageLevel, message, null, 0, 0);
+		}
+	}
+
+	/**
+	 * Logs a message followed by the stack trace of an exception. The stack trace
+	 * is only formatted if the level is logged.
+	 *
+	 * @param messageLevel level of the message
+	 * @param message      the message
+	 * @param thrown       the exception that caused the message
+	 */
+	public static void log(LogLevel messageLevel, String message, Throwable thrown) {
+		if (isEnabled(messageLevel)) {
+			StringWriter text = new StringWriter();
+			PrintWriter out = new PrintWriter(text);
+			out.println(message);
+			thrown.printStackTrace(out);
+			out.flush();
+			appender.append(System.currentTimeMillis(), messageLevel, text.toString().trim(), null, 0, 0);
+		}
+	}
+
+	/**
+	 * Logs a message together with the bytes of a datagram.
+	 *
+	 * @param messageLevel level of the message
+	 * @param message      the message, e.g. "Sent bytes:"
+	 * @param frame        datagram bytes
+	 * @param off          index of the first byte
+	 * @param len          number of bytes
+	 */
+	public static void frame(LogLevel messageLevel, String message, byte[] frame, int off, int len) {
+		if (isEnabled(messageLevel)) {
+			appender.append(System.currentTimeMillis(), messageLevel, message, frame, off, len);
+		}
+	}
+
+	static void debug(String message) {
+		log(LogLevel.DEBUG, message);
+	}
+
+	static void info(String message) {
+		log(LogLevel.INFO, message);
+	}
+
+	static void warn(String message) {
+		log(LogLevel.WARN, message);
+	}
+
+	static void warn(String message, Throwable thrown) {
+		log(LogLevel.WARN, message, thrown);
+	}
+
+	static void error(String message, Throwable thrown) {
+		log(LogLevel.ERROR, message, thrown);
+	}
+}
@@ -0,0 +1,271 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * This class decodes a recording of a {@link FlightRecorder}. The records are
+ * returned oldest first; free records and a record that was half written when
+ * the program stopped are skipped.
+ * <p>
+ * It can also be run as a tool that prints a recording, optionally filtered,
+ * or replays it at its original pace:
+ * </p>
+ *
+ * <pre>
+ * java se.quickcool.coolingdevice.IO.steppermotordriver.FlightRecordReader file
+ *     [-port name] [-slave address] [-register address] [-last seconds] [-errors] [-replay speed]
+ * </pre>
+ * <p>
+ * Addresses may be given in decimal or, with a leading 0x, in hex. -errors
+ * keeps only replies with a CRC failure and timeouts; -last keeps only the
+ * records of the given number of seconds before the newest one. -replay prints
+ * every record at the time it was recorded, sped up by the given factor.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class FlightRecordReader {
+	/**
+	 * One recorded datagram or timeout.
+	 */
+	public static final class Record {
+		private final long sequence;
+		private final long timestampNanos;
+		private final String portName;
+		private final int slaveAddress;
+		private final int registerAddress;
+		private final int value;
+		private final int flags;
+
+		Record(long sequence, long timestampNanos, String portName, int slaveAddress, int registerAddress, int value,
+				int flags) {
+			this.sequence = sequence;
+			this.timestampNanos = timestampNanos;
+			this.portName = portName;
+			this.slaveAddress = slaveAddress;
+			this.registerAddress = registerAddress;
+			this.value = value;
+			this.flags = flags;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return wall clock time in nanoseconds since the epoch
+		 */
+		public long getTimestampNanos() {
+			return timestampNanos;
+		}
+
+		public String getPortName() {
+			return portName;
+		}
+
+		public int getSlaveAddress() {
+			return slaveAddress;
+		}
+
+		/**
+		 * @return register address without the write bit
+		 */
+		public int getRegisterAddress() {
+			return registerAddress & 0x7F;
+		}
+
+		/**
+		 * @return true for a Write Access datagram
+		 */
+		public boolean isWrite() {
+			return (registerAddress & 0x80) != 0;
+		}
+
+		/**
+		 * @return true if the record was received from the bus rather than sent
+		 */
+		public boolean isReceived() {
+			return (flags & FlightRecorder.RECEIVED) != 0;
+		}
+
+		public boolean isCrcOk() {
+			return (flags & FlightRecorder.CRC_OK) != 0;
+		}
+
+		public boolean isTimeout() {
+			return (flags & FlightRecorder.TIMEOUT) != 0;
+		}
+
+		/**
+		 * @return register value of a write or a reply, 0 otherwise
+		 */
+		public int getValue() {
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			Instant time = Instant.ofEpochSecond(TimeUnit.NANOSECONDS.toSeconds(timestampNanos),
+					timestampNanos % TimeUnit.SECONDS.toNanos(1));
+			String kind;
+			if (isTimeout()) {
+				kind = "< TIMEOUT";
+			} else if (isReceived()) {
+				kind = isCrcOk() ? "< REPLY  " : "< CRC ERR";
+			} else {
+				kind = isWrite() ? "> WRITE  " : "> READ   ";
+			}
+			StringBuilder text = new StringBuilder().append(time).append(' ').append(portName).append(" slave ")
+					.append(slaveAddress).append(' ').append(kind).append(' ');
+			HexFormatter.appendByte(text, (byte) getRegisterAddress());
+			if (isWrite() || isReceived() && !isTimeout()) {
+				text.append(' ').append(HexFormatter.formatRegister(value));
+			}
+			return text.toString();
+		}
+	}
+
+	private final ByteBuffer buffer;
+	private final int capacity;
+	private final String[] portNames = new String[FlightRecorder.MAX_PORTS];
+
+	/**
+	 * Opens a recording. The recorder may still be writing to it.
+	 *
+	 * @param file ring file of a {@link FlightRecorder}
+	 * @throws IOException if the file could not be read or is no recording
+	 */
+	public FlightRecordReader(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file)) {
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.capacity() < FlightRecorder.HEADER_SIZE || buffer.getInt(0) != FlightRecorder.MAGIC
+				|| buffer.getInt(4) != FlightRecorder.VERSION || buffer.getInt(8) != FlightRecorder.RECORD_SIZE) {
+			throw new IOException(file + " is not a flight recording");
+		}
+		this.capacity = buffer.getInt(12);
+		if (buffer.capacity() != FlightRecorder.HEADER_SIZE + (long) capacity * FlightRecorder.RECORD_SIZE) {
+			throw new IOException(file + " is truncated");
+		}
+		for (int port = 0; port < portNames.length; port++) {
+			portNames[port] = FlightRecorder.portName(buffer, port);
+		}
+	}
+
+	/**
+	 * @return all records, oldest first
+	 */
+	public List<Record> read() {
+		return read(record -> true);
+	}
+
+	/**
+	 * @param filter decides which records are returned
+	 * @return the records that pass the filter, oldest first
+	 */
+	public List<Record> read(Predicate<Record> filter) {
+		List<Record> records = new ArrayList<>();
+		for (int slot = 0; slot < capacity; slot++) {
+			int offset = FlightRecorder.HEADER_SIZE + slot * FlightRecorder.RECORD_SIZE;
+			long sequence = buffer.getLong(offset + FlightRecorder.SEQUENCE);
+			if (sequence == 0) {
+				continue;
+			}
+			Record record = new Record(sequence, buffer.getLong(offset + FlightRecorder.TIMESTAMP),
+					portNames[(buffer.get(offset + FlightRecorder.PORT) & 0xFF) % portNames.length],
+					buffer.get(offset + FlightRecorder.SLAVE) & 0xFF, buffer.get(offset + FlightRecorder.REGISTER) & 0xFF,
+					buffer.getInt(offset + FlightRecorder.VALUE), buffer.get(offset + FlightRecorder.FLAGS));
+			if (filter.test(record)) {
+				records.add(record);
+			}
+		}
+		records.sort(Comparator.comparingLong(Record::getSequence));
+		return records;
+	}
+
+	/**
+	 * Prints records at the pace they were recorded.
+	 *
+	 * @param records records, oldest first
+	 * @param speed   factor by which the replay is faster than the recording
+	 * @param out     where the records are printed
+	 * @throws InterruptedException if interrupted while waiting for the next
+	 *                              record
+	 */
+	public static void replay(List<Record> records, double speed, PrintStream out) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Record record : records) {
+			long due = (long) ((record.getTimestampNanos() - records.get(0).getTimestampNanos()) / speed);
+			long wait = due - (System.nanoTime() - start);
+			if (wait > 0) {
+				TimeUnit.NANOSECONDS.sleep(wait);
+			}
+			out.println(record);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("Usage: FlightRecordReader file [-port name] [-slave address] [-register address]"
+					+ " [-last seconds] [-errors] [-replay speed]");
+			System.exit(1);
+		}
+		Predicate<Record> filter = record -> true;
+		long lastNanos = -1;
+		double speed = 0;
+		for (int i = 1; i < args.length; i++) {
+			switch (args[i]) {
+			case "-port":
+				String portName = args[++i];
+				filter = filter.and(record -> record.getPortName().equals(portName));
+				break;
+			case "-slave":
+				int slaveAddress = Integer.decode(args[++i]);
+				filter = filter.and(record -> record.getSlaveAddress() == slaveAddress);
+				break;
+			case "-register":
+				int registerAddress = Integer.decode(args[++i]) & 0x7F;
+				filter = filter.and(record -> record.getRegisterAddress() == registerAddress);
+				break;
+			case "-last":
+				lastNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[++i]));
+				break;
+			case "-errors":
+				filter = filter.and(record -> record.isTimeout() || record.isReceived() && !record.isCrcOk());
+				break;
+			case "-replay":
+				speed = Double.parseDouble(args[++i]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+
+		FlightRecordReader reader = new FlightRecordReader(Paths.get(args[0]));
+		if (lastNanos >= 0) {
+			List<Record> all = reader.read();
+			long since = all.isEmpty() ? 0 : all.get(all.size() - 1).getTimestampNanos() - lastNanos;
+			filter = filter.and(record -> record.getTimestampNanos() >= since);
+		}
+		List<Record> records = reader.read(filter);
+		if (speed > 0) {
+			replay(records, speed, System.out);
+		} else {
+			for (Record record : records) {
+				System.out.println(record);
+			}
+		}
+	}
+}
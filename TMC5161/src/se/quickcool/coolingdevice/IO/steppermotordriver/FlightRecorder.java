@@ -0,0 +1,263 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class records the traffic of one or more buses into a memory-mapped ring
+ * file, so that the last hours before a fault in the field can be looked at
+ * afterwards with {@link FlightRecordReader}. Every datagram that is sent, every
+ * reply that is received, every reply that fails its CRC check and every
+ * request that times out becomes one record of fixed size. When the ring is
+ * full, the oldest records are overwritten.
+ * <p>
+ * Records are written on the I/O path of the buses: a record is claimed with a
+ * single atomic increment and its fields are stored straight into the mapped
+ * file, without any lock and without allocation. The operating system writes
+ * the mapped pages back to disk by itself, so the records survive a crash of
+ * the program, though not necessarily a loss of power.
+ * </p>
+ * <p>
+ * File layout, big endian: a header of {@value #HEADER_SIZE} bytes with the
+ * magic "TMCR", a format version, the record size, the capacity in records and
+ * a table of up to {@value #MAX_PORTS} port names, each a length byte followed
+ * by at most 31 bytes of UTF-8. Then {@value #RECORD_SIZE} bytes per record:
+ * </p>
+ * <ul>
+ * <li>sequence number, 8 bytes, starting at 1; 0 marks a free or half written
+ * record</li>
+ * <li>wall clock time in nanoseconds since the epoch, 8 bytes</li>
+ * <li>register value, 4 bytes, 0 for read requests and timeouts</li>
+ * <li>index of the port in the port table, 1 byte</li>
+ * <li>slave address, 1 byte, 0xFF for a reply that could not be assigned to a
+ * slave</li>
+ * <li>register address, 1 byte, with the write bit 0x80 set for Write
+ * Access</li>
+ * <li>flags, 1 byte: {@link #RECEIVED}, {@link #CRC_OK} and
+ * {@link #TIMEOUT}</li>
+ * </ul>
+ * <p>
+ * An existing recording with the same capacity is continued, otherwise the
+ * file is started anew. A bus that is busy all the time at 115200 baud
+ * produces about 2000 records per second, so an hour takes a capacity of about
+ * 7 million records, or 170 MB. Status polling at the usual rates takes a small
+ * fraction of that.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class FlightRecorder implements Closeable {
+	static final int MAGIC = 'T' << 24 | 'M' << 16 | 'C' << 8 | 'R';
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 1024;
+	static final int RECORD_SIZE = 24;
+	static final int MAX_PORTS = 30;
+	static final int PORT_TABLE_OFFSET = 32, PORT_NAME_SIZE = 32;
+	static final int SEQUENCE = 0, TIMESTAMP = 8, VALUE = 16, PORT = 20, SLAVE = 21, REGISTER = 22, FLAGS = 23;
+
+	/**
+	 * Flag of a record that was received from the bus rather than sent.
+	 */
+	public static final int RECEIVED = 1;
+	/**
+	 * Flag of a datagram with a valid CRC byte. Datagrams that are sent always
+	 * have one.
+	 */
+	public static final int CRC_OK = 2;
+	/**
+	 * Flag of a read request whose reply did not arrive in time.
+	 */
+	public static final int TIMEOUT = 4;
+
+	/**
+	 * The recording of one bus. Obtained from {@link FlightRecorder#channel} and
+	 * called by the I/O path of the bus.
+	 */
+	final class Channel {
+		private final byte port;
+
+		private Channel(byte port) {
+			this.port = port;
+		}
+
+		/**
+		 * @param buf    one or more Write Access datagrams
+		 * @param length number of bytes sent
+		 */
+		void writesSent(byte[] buf, int length) {
+			for (int i = 0; i + DatagramEncoder.WRITE_ACCESS_LENGTH <= length; i += DatagramEncoder.WRITE_ACCESS_LENGTH) {
+				record(port, buf[i + 1], buf[i + 2], dataOf(buf, i), CRC_OK);
+			}
+		}
+
+		void requestSent(byte slaveAddress, byte registerAddress) {
+			record(port, slaveAddress, registerAddress, 0, CRC_OK);
+		}
+
+		/**
+		 * @param slaveAddress slave that the reply was assigned to, or the master
+		 *                     address if none
+		 * @param reply        reply package, which is not kept
+		 * @param crcOk        false if the CRC byte of the reply did not match
+		 */
+		void replyReceived(byte slaveAddress, byte[] reply, boolean crcOk) {
+			record(port, slaveAddress, reply[2], dataOf(reply, 0), crcOk ? RECEIVED | CRC_OK : RECEIVED);
+		}
+
+		void timedOut(byte slaveAddress, byte registerAddress) {
+			record(port, slaveAddress, registerAddress, 0, RECEIVED | TIMEOUT);
+		}
+	}
+
+	private final Path file;
+	private final int capacity;
+	private final MappedByteBuffer buffer;
+	private final AtomicLong nextSequence;
+	private final long epochOffsetNanos; // added to System.nanoTime() to get the wall clock time
+	private int ports;
+	private volatile boolean closed;
+
+	/**
+	 * Opens a recording, continuing it if the file already holds one of the same
+	 * capacity.
+	 *
+	 * @param file     ring file
+	 * @param capacity number of records the ring holds
+	 * @throws IOException if the file could not be created or mapped
+	 */
+	public FlightRecorder(Path file, int capacity) throws IOException {
+		if (capacity < 1 || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		this.file = file;
+		this.capacity = capacity;
+		long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		if (Files.exists(file) && !matches(file, capacity, size)) {
+			if (Files.size(file) > 0) {
+				DriverLog.warn("Starting a new flight recording in " + file);
+			}
+			Files.delete(file);
+		}
+		try (RandomAccessFile ring = new RandomAccessFile(file.toFile(), "rw")) {
+			ring.setLength(size); // a new file is filled with zeros, i.e. free records
+			this.buffer = ring.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, RECORD_SIZE);
+		buffer.putInt(12, capacity);
+		while (ports < MAX_PORTS && buffer.get(PORT_TABLE_OFFSET + ports * PORT_NAME_SIZE) != 0) {
+			ports++;
+		}
+		long lastSequence = 0;
+		for (int slot = 0; slot < capacity; slot++) {
+			lastSequence = Math.max(lastSequence, buffer.getLong(HEADER_SIZE + slot * RECORD_SIZE + SEQUENCE));
+		}
+		this.nextSequence = new AtomicLong(lastSequence + 1);
+		this.epochOffsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+	}
+
+	/**
+	 * Returns the recording of a bus, adding the port to the port table the first
+	 * time it is seen.
+	 *
+	 * @param portName name of the port of the bus
+	 * @return channel that the bus records through
+	 */
+	synchronized Channel channel(String portName) {
+		byte[] name = String.valueOf(portName).getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(name.length, PORT_NAME_SIZE - 1);
+		for (int port = 0; port < ports; port++) {
+			if (portName(buffer, port).equals(new String(name, 0, length, StandardCharsets.UTF_8))) {
+				return new Channel((byte) port);
+			}
+		}
+		if (ports == MAX_PORTS) {
+			throw new IllegalStateException("No more than " + MAX_PORTS + " ports can be recorded in " + file);
+		}
+		int offset = PORT_TABLE_OFFSET + ports * PORT_NAME_SIZE;
+		for (int i = 0; i < length; i++) {
+			buffer.put(offset + 1 + i, name[i]);
+		}
+		buffer.put(offset, (byte) length);
+		return new Channel((byte) ports++);
+	}
+
+	/**
+	 * @return number of records written since the recording was started,
+	 *         including those that have been overwritten since
+	 */
+	public long getRecordCount() {
+		return nextSequence.get() - 1;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Stops the recording and writes the mapped pages to disk.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		buffer.force();
+	}
+
+	private void record(byte port, byte slaveAddress, byte registerAddress, int value, int flags) {
+		if (closed) {
+			return;
+		}
+		long sequence = nextSequence.getAndIncrement();
+		int offset = HEADER_SIZE + (int) ((sequence - 1) % capacity) * RECORD_SIZE;
+		buffer.putLong(offset + SEQUENCE, 0); // half written until the sequence number is set
+		buffer.putLong(offset + TIMESTAMP, epochOffsetNanos + System.nanoTime());
+		buffer.putInt(offset + VALUE, value);
+		buffer.put(offset + PORT, port);
+		buffer.put(offset + SLAVE, slaveAddress);
+		buffer.put(offset + REGISTER, registerAddress);
+		buffer.put(offset + FLAGS, (byte) flags);
+		buffer.putLong(offset + SEQUENCE, sequence);
+	}
+
+	/**
+	 * @param datagram Write Access datagram or reply package
+	 * @param off      index of the sync byte
+	 * @return the 32-bit data of the datagram
+	 */
+	private static int dataOf(byte[] datagram, int off) {
+		return (datagram[off + 3] & 0xFF) << 24 | (datagram[off + 4] & 0xFF) << 16 | (datagram[off + 5] & 0xFF) << 8
+				| datagram[off + 6] & 0xFF;
+	}
+
+	static String portName(ByteBuffer buffer, int port) {
+		int offset = PORT_TABLE_OFFSET + port * PORT_NAME_SIZE;
+		byte[] name = new byte[buffer.get(offset) & 0xFF];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = buffer.get(offset + 1 + i);
+		}
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	private static boolean matches(Path file, int capacity, long size) throws IOException {
+		if (Files.size(file) != size) {
+			return false;
+		}
+		ByteBuffer header = ByteBuffer.allocate(16);
+		try (FileChannel channel = FileChannel.open(file)) {
+			channel.read(header, 0);
+		}
+		return header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == RECORD_SIZE
+				&& header.getInt(12) == capacity;
+	}
+}
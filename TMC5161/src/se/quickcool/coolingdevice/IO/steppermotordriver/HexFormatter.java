@@ -0,0 +1,83 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Formats datagram bytes as hexadecimal text, e.g. "0x05, 0xFF, 0x6F". The two
+ * hex digits of every byte value are taken from a lookup table, so formatting
+ * a datagram is a single pass that only allocates the resulting string, or
+ * nothing at all when appending to a StringBuilder that has room.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class HexFormatter {
+	private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+	private static final char[] HEX = new char[512]; // two upper case digits for every byte value
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			HEX[2 * i] = DIGITS[i >>> 4];
+			HEX[2 * i + 1] = DIGITS[i & 0xF];
+		}
+	}
+
+	private HexFormatter() {
+	}
+
+	/**
+	 * Appends datagram bytes separated by commas, e.g. "0x05, 0x00, 0x6F, 0x8E".
+	 *
+	 * @param sb    receives the text
+	 * @param frame datagram bytes
+	 * @param off   index of the first byte
+	 * @param len   number of bytes
+	 * @return the given StringBuilder
+	 */
+	public static StringBuilder appendFrame(StringBuilder sb, byte[] frame, int off, int len) {
+		for (int i = 0; i < len; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			appendByte(sb, frame[off + i]);
+		}
+		return sb;
+	}
+
+	/**
+	 * @param frame datagram bytes
+	 * @return the bytes separated by commas, e.g. "0x05, 0x00, 0x6F, 0x8E"
+	 */
+	public static String formatFrame(byte[] frame) {
+		return appendFrame(new StringBuilder(frame.length * 6), frame, 0, frame.length).toString();
+	}
+
+	/**
+	 * Appends a byte as "0x" followed by two upper case hex digits.
+	 *
+	 * @param sb receives the text
+	 * @param b  byte value
+	 * @return the given StringBuilder
+	 */
+	public static StringBuilder appendByte(StringBuilder sb, byte b) {
+		int i = (b & 0xFF) << 1;
+		return sb.append('0').append('x').append(HEX[i]).append(HEX[i + 1]);
+	}
+
+	/**
+	 * Formats a 32-bit register value as "0x" followed by eight upper case hex
+	 * digits, e.g. "0x000100C3".
+	 *
+	 * @param value register value
+	 * @return formatted value
+	 */
+	public static String formatRegister(int value) {
+		char[] text = new char[10];
+		text[0] = '0';
+		text[1] = 'x';
+		for (int shift = 24, pos = 2; shift >= 0; shift -= 8, pos += 2) {
+			int i = (value >>> shift & 0xFF) << 1;
+			text[pos] = HEX[i];
+			text[pos + 1] = HEX[i + 1];
+		}
+		return new String(text);
+	}
+}
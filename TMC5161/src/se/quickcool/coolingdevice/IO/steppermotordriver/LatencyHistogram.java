@@ -0,0 +1,143 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class is a latency histogram in the style of HdrHistogram. Every power
+ * of two is split into 16 linear sub-buckets, so any recorded value is known to
+ * within 1/16 of itself, from a single nanosecond up to 2^40 ns (about 18
+ * minutes). Larger values are counted in the last bucket.
+ * <p>
+ * All buckets are allocated up front. Recording a value is a bucket index
+ * computed from the leading zeros of the value and a couple of atomic
+ * increments, so it neither allocates memory nor takes a lock and can be done
+ * from any thread. Reading the statistics scans the buckets and may miss values
+ * recorded at the same time, which is good enough for monitoring.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 40;
+	private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalCount = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos latency in nanoseconds, negative values count as 0
+	 */
+	void record(long nanos) {
+		long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+		counts.incrementAndGet(bucketIndex(value));
+		totalCount.incrementAndGet();
+		totalNanos.addAndGet(value);
+		long max;
+		while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value)) {
+			// another thread raised the maximum in between, try again
+		}
+	}
+
+	/**
+	 * Adds all values recorded by another histogram to this one.
+	 *
+	 * @param other histogram to add
+	 */
+	void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		totalCount.addAndGet(other.totalCount.get());
+		totalNanos.addAndGet(other.totalNanos.get());
+		long max;
+		long otherMax = other.maxNanos.get();
+		while (otherMax > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, otherMax)) {
+			// another thread raised the maximum in between, try again
+		}
+	}
+
+	/**
+	 * Forgets all recorded values.
+	 */
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		totalCount.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	long getCount() {
+		return totalCount.get();
+	}
+
+	/**
+	 * Returns the value below which the given share of the recorded values lies.
+	 * The value is the upper end of the bucket, so it is never below the true
+	 * percentile and at most 1/16 above it.
+	 *
+	 * @param percentile percentile, 0 to 100
+	 * @return latency in nanoseconds, or 0 if nothing has been recorded
+	 */
+	long getPercentileNanos(double percentile) {
+		long count = totalCount.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueInBucket(i), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return statistics of the recorded values in microseconds
+	 */
+	LatencyStatistics getStatistics() {
+		long count = totalCount.get();
+		return new LatencyStatistics(count, count == 0 ? 0 : toMicros(totalNanos.get()) / count,
+				toMicros(getPercentileNanos(50)), toMicros(getPercentileNanos(90)), toMicros(getPercentileNanos(99)),
+				toMicros(getPercentileNanos(99.9)), toMicros(maxNanos.get()));
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift & SUB_BUCKETS - 1);
+	}
+
+	static long highestValueInBucket(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	private static double toMicros(long nanos) {
+		return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+}
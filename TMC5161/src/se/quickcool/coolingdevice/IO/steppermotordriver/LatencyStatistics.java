@@ -0,0 +1,86 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * This class is an immutable summary of the request latencies recorded for a
+ * motor driver or a whole bus. Latencies are measured from the moment a Read
+ * Access request is handed to the serial port until its reply has been
+ * decoded, so they include the transmission time of both datagrams. A JMX
+ * client sees the summary as a composite value.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class LatencyStatistics {
+	private final long count;
+	private final double meanMicros, p50Micros, p90Micros, p99Micros, p999Micros, maxMicros;
+
+	@ConstructorProperties({ "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros",
+			"maxMicros" })
+	public LatencyStatistics(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros,
+			double p999Micros, double maxMicros) {
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.p999Micros = p999Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	/**
+	 * @return number of recorded requests
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return mean latency in microseconds
+	 */
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	/**
+	 * @return median latency in microseconds
+	 */
+	public double getP50Micros() {
+		return p50Micros;
+	}
+
+	/**
+	 * @return 90th percentile of the latency in microseconds
+	 */
+	public double getP90Micros() {
+		return p90Micros;
+	}
+
+	/**
+	 * @return 99th percentile of the latency in microseconds
+	 */
+	public double getP99Micros() {
+		return p99Micros;
+	}
+
+	/**
+	 * @return 99.9th percentile of the latency in microseconds
+	 */
+	public double getP999Micros() {
+		return p999Micros;
+	}
+
+	/**
+	 * @return highest latency in microseconds
+	 */
+	public double getMaxMicros() {
+		return maxMicros;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LatencyStatistics[count=%d, mean=%.1f us, p50=%.1f us, p99=%.1f us, max=%.1f us]", count,
+				meanMicros, p50Micros, p99Micros, maxMicros);
+	}
+}
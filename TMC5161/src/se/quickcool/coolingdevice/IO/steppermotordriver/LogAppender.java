@@ -0,0 +1,27 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Writes the messages logged through {@link DriverLog} somewhere, e.g. to the
+ * console. A message may come with the bytes of a datagram, which the appender
+ * formats itself, so that no string is built for a datagram that is never
+ * written out.
+ * <p>
+ * <b>Note:</b> Appenders are invoked concurrently from the I/O thread of every
+ * bus, the serial port callbacks and the threads that control the motors. The
+ * datagram bytes are only valid during the call.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public interface LogAppender {
+	/**
+	 * @param timeMillis time of the message in milliseconds since the epoch
+	 * @param level      level of the message
+	 * @param message    the message
+	 * @param frame      bytes of a datagram, or null if the message has none
+	 * @param off        index of the first datagram byte
+	 * @param len        number of datagram bytes
+	 */
+	void append(long timeMillis, LogLevel level, String message, byte[] frame, int off, int len);
+}
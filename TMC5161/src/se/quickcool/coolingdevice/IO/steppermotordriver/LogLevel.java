@@ -0,0 +1,23 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Levels of the messages logged through {@link DriverLog}, from the most to the
+ * least detailed.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public enum LogLevel {
+	/** Every datagram that is sent or received. */
+	TRACE,
+	/** Results of every status check. */
+	DEBUG,
+	/** Opening the port, configuring the motor and the like. */
+	INFO,
+	/** Something went wrong but was recovered from. */
+	WARN,
+	/** Something went wrong. */
+	ERROR,
+	/** Nothing is logged. */
+	OFF
+}
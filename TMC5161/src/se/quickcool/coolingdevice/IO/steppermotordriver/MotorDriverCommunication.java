@@ -1,11 +1,22 @@
 package se.quickcool.coolingdevice.IO.steppermotordriver;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * This class is responsible for organizing the packages that are to be sent to
  * the TMC. Communication occurs from a serial port on the PC to the UART single
  * wire interface on the TMC. Read and write access packages are formed
  * according to the datagram structure specified in the TMC5161 datasheet.
  * <p>
+ * Every instance talks to one TMC5161 slave address. Several instances may share
+ * the same serial port through a {@link StepperMotorBus}.
+ * </p>
+ * <p>
  * <b>Note:</b> JSerialComm is a Java library designed to enable communication
  * with a serial port using Java.
  * </p>
@@ -14,12 +25,45 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
  *
  */
 class MotorDriverCommunication {
-	private byte SLAVEADDRESS = 0x00;
-	private UARTSerialComm usc;
-	private byte[] newData; // globally accessible buffer for data arrived at the serial port
+	private static final int MAX_WRITE_ATTEMPTS = 3;
+	private static final int MAX_READ_ATTEMPTS = 3; // per read of IFCNT or of a register read back
+	private static final int IFCNT_RANGE = 256; // IFCNT is an 8-bit counter that wraps around
+
+	private byte SLAVEADDRESS;
+	private StepperMotorBus bus;
+	private DatagramEncoder encoder; // reusable write buffer and precomputed read requests
+	private ShadowRegisters shadow = new ShadowRegisters(); // last value written to every register
+	private byte[] batchBuffer = new byte[32 * DatagramEncoder.WRITE_ACCESS_LENGTH]; // grows on demand
+	// guards the reusable write buffers; a lock rather than a monitor so that virtual threads can block on it
+	private final ReentrantLock writeLock = new ReentrantLock();
 
+	/**
+	 * Creates a communication object for a single TMC5161 at slave address 0 which
+	 * has a serial port of its own.
+	 */
 	MotorDriverCommunication() {
-		this.usc = new UARTSerialComm(this);
+		this(new StepperMotorBus(), (byte) 0x00);
+	}
+
+	/**
+	 * Creates a communication object for one slave on a shared bus.
+	 * 
+	 * @param bus          bus that owns the serial port
+	 * @param slaveAddress UART slave address of the TMC5161
+	 */
+	MotorDriverCommunication(StepperMotorBus bus, byte slaveAddress) {
+		this.SLAVEADDRESS = slaveAddress;
+		this.bus = bus;
+		this.encoder = new DatagramEncoder(slaveAddress);
+	}
+
+	/**
+	 * Returns the UART slave address of the TMC5161 this object talks to.
+	 * 
+	 * @return slave address
+	 */
+	byte getSlaveAddress() {
+		return SLAVEADDRESS;
 	}
 
 	/**
@@ -28,39 +72,221 @@ class MotorDriverCommunication {
 	 * lower layers that physically sends the package. The datagram package is
 	 * structured according to the structure outlined in the TMC datasheet. The CRC
 	 * checksum of the package is computed as a control measure to verify intact
-	 * data arrival. The term <i>Write Access</i> refers to a request to write data
-	 * contained in the transferred package to specific TMC5161 registers for
-	 * enabling various kinds of control or operations of the stepper motor.
+	 * data arrival. The package is encoded into a buffer that is reused for every
+	 * write, which is why the write lock is held while sending. The term <i>Write
+	 * Access</i> refers to a request to write data contained in the transferred
+	 * package to specific TMC5161 registers for enabling various kinds of control
+	 * or operations of the stepper motor.
 	 * <p>
 	 * <b>Note:</b> The TMC5161 takes a 64-bit data package for Write Access: 8 sync
 	 * + reserved, 8 slave address, 8 register address, 32-bit data, 8 CRC
 	 * </p>
+	 * <p>
+	 * The write is skipped if the shadow copy shows that the register already
+	 * holds the value. Registers that the chip updates by itself, like XACTUAL, are
+	 * always written, and so are safety relevant registers unless their value has
+	 * been confirmed, since this write itself is not.
+	 * </p>
+	 * 
+	 * @param registerAddress The address of the register that is to be written to
+	 * @param datagram        32-bit data value which to be written to the register
+	 *                        address
+	 * @throws CommunicationException if the datagram could not be sent
+	 */
+	void sendWriteAccessPackage(byte registerAddress, long datagram) throws CommunicationException {
+		writeLock.lock();
+		try {
+			if (shadow.holds(registerAddress, (int) datagram)) {
+				return;
+			}
+			bus.write(registerAddress, encoder.encodeWriteAccess(registerAddress, datagram));
+			shadow.recordWrite(registerAddress, (int) datagram);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a single register like {@link #sendWriteAccessPackage(byte, long)}
+	 * and confirms its arrival with the interface transmission counter IFCNT. If
+	 * the counter did not advance, the write got lost on the way and is sent
+	 * again. Only a confirmed value is taken into the shadow copy as one the chip
+	 * holds; if the write can not be confirmed, the register is forgotten.
 	 * 
 	 * @param registerAddress The address of the register that is to be written to
 	 * @param datagram        32-bit data value which to be written to the register
 	 *                        address
+	 * @throws CommunicationException if IFCNT could not be read or the write was
+	 *                                still not accepted after several attempts
+	 */
+	void sendAcknowledgedWriteAccessPackage(byte registerAddress, long datagram) throws CommunicationException {
+		writeLock.lock(); // no other write may bump IFCNT in between
+		try {
+			if (shadow.holds(registerAddress, (int) datagram)) {
+				return;
+			}
+			writeAcknowledged(new RegisterWrite(registerAddress, datagram));
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a whole group of Write Access datagrams at once. All datagrams are
+	 * encoded back-to-back into one buffer which is handed to the serial port in a
+	 * single write, instead of paying the flush and transmission time of
+	 * {@link #sendWriteAccessPackage(byte, long)} for every register. The writes
+	 * are carried out in list order. They are always sent, even if the shadow copy
+	 * already holds the values, since a batch is used to (re)configure the chip.
+	 * 
+	 * @param writes register writes in the order they are to be carried out
+	 * @throws CommunicationException if the datagrams could not be sent
+	 */
+	void writeBatch(List<RegisterWrite> writes) throws CommunicationException {
+		int length = writes.size() * DatagramEncoder.WRITE_ACCESS_LENGTH;
+		if (length == 0) {
+			return;
+		}
+		writeLock.lock();
+		try {
+			if (batchBuffer.length < length) {
+				batchBuffer = new byte[length];
+			}
+			int off = 0;
+			for (RegisterWrite write : writes) {
+				DatagramEncoder.encodeWriteAccess(batchBuffer, off, SLAVEADDRESS, write.getRegisterAddress(),
+						write.getDatagram());
+				off += DatagramEncoder.WRITE_ACCESS_LENGTH;
+			}
+			bus.writeBatch(batchBuffer, length);
+			for (RegisterWrite write : writes) {
+				shadow.recordWrite(write.getRegisterAddress(), (int) write.getDatagram());
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a group of Write Access datagrams and confirms their arrival with the
+	 * interface transmission counter IFCNT, which the TMC increments with every
+	 * successful UART write access. The counter is read before and after the
+	 * batch; if it advanced by the number of datagrams sent, every write was
+	 * accepted and no delay is needed.
+	 * <p>
+	 * IFCNT only tells how many writes arrived, not which. If some were lost, the
+	 * writes to registers that can be read back are checked one by one and only
+	 * those that do not hold the written value are sent again. Writes to write only
+	 * registers can not be told apart and are sent again individually, each
+	 * confirmed by IFCNT.
+	 * </p>
+	 * <p>
+	 * The shadow copy marks a value as confirmed only once its write has been
+	 * accounted for. A read of IFCNT whose reply got lost is repeated; only if
+	 * IFCNT can not be read at all are the registers of the batch forgotten, since
+	 * it is unknown which of the writes arrived.
+	 * </p>
+	 * 
+	 * @param writes register writes in the order they are to be carried out
+	 * @return number of writes that had to be sent again
+	 * @throws CommunicationException if IFCNT could not be read or a write was
+	 *                                still not accepted after several attempts
+	 */
+	int writeBatchVerified(List<RegisterWrite> writes) throws CommunicationException {
+		int retried = 0;
+		writeLock.lock(); // no other write may bump IFCNT in between
+		try {
+			for (int from = 0; from < writes.size(); from += IFCNT_RANGE - 1) {
+				List<RegisterWrite> group = writes.subList(from, Math.min(writes.size(), from + IFCNT_RANGE - 1));
+				int counterBefore = readInterfaceCounter();
+				writeBatch(group);
+				if (acceptedSince(counterBefore) == group.size()) {
+					recordConfirmed(group);
+					continue;
+				}
+				invalidate(group); // some of the writes got lost
+				for (RegisterWrite write : group) {
+					byte registerAddress = write.getRegisterAddress();
+					if (RegisterAccess.isReadBackVerifiable(registerAddress)
+							&& readRegister(registerAddress) == (int) write.getDatagram()) {
+						shadow.recordConfirmed(registerAddress, (int) write.getDatagram());
+						continue;
+					}
+					writeAcknowledged(write);
+					retried++;
+				}
+			}
+		} catch (CommunicationException e) {
+			invalidate(writes);
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+		return retried;
+	}
+
+	private void writeAcknowledged(RegisterWrite write) throws CommunicationException {
+		List<RegisterWrite> single = Collections.singletonList(write);
+		byte registerAddress = write.getRegisterAddress();
+		try {
+			int counter = readInterfaceCounter();
+			for (int attempt = 0; attempt < MAX_WRITE_ATTEMPTS; attempt++) {
+				writeBatch(single);
+				int counterAfter = readInterfaceCounter();
+				if ((counterAfter - counter & 0xFF) == 1) {
+					shadow.recordConfirmed(registerAddress, (int) write.getDatagram());
+					return;
+				}
+				counter = counterAfter; // the write got lost; the next attempt counts from here
+			}
+		} catch (CommunicationException e) {
+			shadow.invalidate(registerAddress);
+			throw e;
+		}
+		shadow.invalidate(registerAddress);
+		throw new CommunicationException("Write access to register 0x"
+				+ Integer.toHexString(registerAddress & 0x7F).toUpperCase() + " was not acknowledged");
+	}
+
+	private void recordConfirmed(List<RegisterWrite> writes) {
+		for (RegisterWrite write : writes) {
+			shadow.recordConfirmed(write.getRegisterAddress(), (int) write.getDatagram());
+		}
+	}
+
+	private void invalidate(List<RegisterWrite> writes) {
+		for (RegisterWrite write : writes) {
+			shadow.invalidate(write.getRegisterAddress());
+		}
+	}
+
+	/**
+	 * Reads the interface transmission counter IFCNT. Reading does not change the
+	 * counter, so a read whose reply got lost is simply repeated.
+	 * 
+	 * @return the interface transmission counter IFCNT, which the TMC increments
+	 *         with every accepted Write Access
+	 * @throws CommunicationException if IFCNT could not be read in several
+	 *                                attempts
 	 */
-	void sendWriteAccessPackage(byte registerAddress, long datagram) {
-		byte CRC = 0;
-		byte[] buf = new byte[8];
-		CRC = CRCgenerator.nextCRC(CRC, (byte) 0x05);
-		CRC = CRCgenerator.nextCRC(CRC, SLAVEADDRESS);
-		CRC = CRCgenerator.nextCRC(CRC, (byte) (registerAddress | 0x80));
-		CRC = CRCgenerator.nextCRC(CRC, (byte) ((datagram >> 24) & 0xff));
-		CRC = CRCgenerator.nextCRC(CRC, (byte) ((datagram >> 16) & 0xff));
-		CRC = CRCgenerator.nextCRC(CRC, (byte) ((datagram >> 8) & 0xff));
-		CRC = CRCgenerator.nextCRC(CRC, (byte) (datagram & 0xff));
+	int readInterfaceCounter() throws CommunicationException {
+		return readRegister(RegisterAccess.IFCNT) & 0xFF;
+	}
 
-		buf[0] = 0x05;
-		buf[1] = SLAVEADDRESS;
-		buf[2] = (byte) (Byte.toUnsignedInt(registerAddress) | 0x80); // Add 0x80 to the reg.addr. for write accesses!
-		buf[3] = (byte) ((datagram >> 24) & 0xFF);
-		buf[4] = (byte) ((datagram >> 16) & 0xFF);
-		buf[5] = (byte) ((datagram >> 8) & 0xFF);
-		buf[6] = (byte) (datagram & 0xFF);
-		buf[7] = CRC;
+	private int readRegister(byte registerAddress) throws CommunicationException {
+		for (int attempt = 1;; attempt++) {
+			try {
+				return PackageAnalyzer.extractRegisterValue(sendReadAccessPackage(registerAddress));
+			} catch (CommunicationException e) {
+				if (attempt == MAX_READ_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
+	}
 
-		usc.uartWriteAccess(registerAddress, buf);
+	private int acceptedSince(int counterBefore) throws CommunicationException {
+		return (readInterfaceCounter() - counterBefore) & 0xFF;
 	}
 
 	/**
@@ -68,63 +294,157 @@ class MotorDriverCommunication {
 	 * the TMC5161 for Read Access purposes. <i>Read Access</i> refers to a request
 	 * to read from readable TMC5161 registers. If the package is valid, this will
 	 * trigger a reply from the TMC5161. The reply package that gets returned will
-	 * contain the value of the read register.
+	 * contain the value of the read register. The request datagram itself is
+	 * constant for each register and is taken from the precomputed requests of the
+	 * encoder.
+	 * <p>
+	 * The calling thread blocks until the reply to exactly this request has
+	 * arrived. It is woken as soon as the reply lands.
+	 * </p>
 	 * 
 	 * @param registerAddress The address of the register that is to be read from
-	 * @throws CommunicationException
+	 * @return the reply package
+	 * @throws CommunicationException if no reply arrived within the waiting time
 	 */
-	synchronized byte[] sendReadAccessPackage(byte registerAddress) throws CommunicationException {
-		byte CRC = 0;
-		byte[] buf = new byte[4];
+	byte[] sendReadAccessPackage(byte registerAddress) throws CommunicationException {
+		return awaitReply(sendReadAccessPackageAsync(registerAddress));
+	}
 
-		CRC = CRCgenerator.nextCRC(CRC, (byte) 0x05);
-		CRC = CRCgenerator.nextCRC(CRC, SLAVEADDRESS);
-		CRC = CRCgenerator.nextCRC(CRC, registerAddress);
+	/**
+	 * Reads several registers in one pipelined burst. All requests are queued at
+	 * once and sent back-to-back, each as soon as the previous reply has arrived,
+	 * and the calling thread blocks only once for the whole group instead of once
+	 * per register.
+	 * 
+	 * @param registerAddress the addresses of the registers that are to be read
+	 * @return the reply packages, in the same order as the registers
+	 * @throws CommunicationException if any of the replies did not arrive within
+	 *                                the waiting time
+	 */
+	byte[][] sendReadAccessPackages(byte... registerAddress) throws CommunicationException {
+		byte[][] requests = new byte[registerAddress.length][];
+		for (int i = 0; i < registerAddress.length; i++) {
+			requests[i] = encoder.readAccessRequest(registerAddress[i]);
+		}
+		List<CompletableFuture<byte[]>> pending = bus.submitReads(SLAVEADDRESS, registerAddress, requests);
+		byte[][] replies = new byte[registerAddress.length][];
+		for (int i = 0; i < replies.length; i++) {
+			replies[i] = awaitReply(pending.get(i));
+		}
+		return replies;
+	}
 
-		buf[0] = 0x05;
-		buf[1] = SLAVEADDRESS;
-		buf[2] = registerAddress;
-		buf[3] = CRC;
+	/**
+	 * Reads several registers in one pipelined burst like
+	 * {@link #sendReadAccessPackages(byte...)}, but extracts the register values
+	 * into an array of the caller instead of returning the reply packages.
+	 * 
+	 * @param registerAddress the addresses of the registers that are to be read
+	 * @param count           number of registers to read from the start of the
+	 *                        array
+	 * @param values          receives the register values, in the same order
+	 * @throws CommunicationException if any of the replies did not arrive within
+	 *                                the waiting time
+	 */
+	void readRegisters(byte[] registerAddress, int count, int[] values) throws CommunicationException {
+		byte[] group = count == registerAddress.length ? registerAddress : Arrays.copyOf(registerAddress, count);
+		byte[][] requests = new byte[count][];
+		for (int i = 0; i < count; i++) {
+			requests[i] = encoder.readAccessRequest(group[i]);
+		}
+		List<CompletableFuture<byte[]>> pending = bus.submitReads(SLAVEADDRESS, group, requests);
+		for (int i = 0; i < count; i++) {
+			values[i] = PackageAnalyzer.extractRegisterValue(awaitReply(pending.get(i)));
+		}
+	}
 
-		usc.uartReadAccess(registerAddress, buf);
+	/**
+	 * Sends a Read Access request without waiting for the reply. Several requests
+	 * may be outstanding at the same time; they are transmitted one after another
+	 * and each future is completed with the reply that matches its register.
+	 * 
+	 * @param registerAddress The address of the register that is to be read from
+	 * @return future completed with the reply package
+	 */
+	CompletableFuture<byte[]> sendReadAccessPackageAsync(byte registerAddress) {
+		return bus.submitRead(SLAVEADDRESS, registerAddress, encoder.readAccessRequest(registerAddress));
+	}
+
+	/**
+	 * Reads a register asynchronously and extracts the 32-bit register value from
+	 * the reply package. Write only registers can not be read across the UART
+	 * interface; their value is taken from the shadow copy of the last write
+	 * instead, without any bus traffic.
+	 * 
+	 * @param registerAddress The address of the register that is to be read from
+	 * @return future completed with the register value, or exceptionally with a
+	 *         CommunicationException for a write only register that has not been
+	 *         written yet
+	 */
+	CompletableFuture<Integer> readRegisterAsync(byte registerAddress) {
+		if (!RegisterAccess.isReadable(registerAddress)) {
+			CompletableFuture<Integer> value = new CompletableFuture<>();
+			if (shadow.isKnown(registerAddress)) {
+				value.complete(shadow.get(registerAddress));
+			} else {
+				value.completeExceptionally(new CommunicationException("Register 0x"
+						+ Integer.toHexString(registerAddress & 0x7F).toUpperCase() + " is write only and unknown"));
+			}
+			return value;
+		}
+		return sendReadAccessPackageAsync(registerAddress).thenApply(PackageAnalyzer::extractRegisterValue);
+	}
+
+	/**
+	 * Returns the shadow copy of the registers of this slave.
+	 * 
+	 * @return last written register values
+	 */
+	ShadowRegisters getShadowRegisters() {
+		return shadow;
+	}
+
+	/**
+	 * Blocks until a pending reply has arrived.
+	 * 
+	 * @param reply future of a Read Access request
+	 * @return the reply package
+	 * @throws CommunicationException if the waiting time expired or the thread was
+	 *                                interrupted
+	 */
+	static <T> T awaitReply(CompletableFuture<T> reply) throws CommunicationException {
 		try {
-			wait(100);
+			return reply.get();
 		} catch (InterruptedException e) {
-			throw new CommunicationException("Waiting time expired: no reply answer");
+			Thread.currentThread().interrupt();
+			throw new CommunicationException("Interrupted while waiting for reply answer");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CommunicationException) {
+				throw (CommunicationException) e.getCause();
+			}
+			throw new CommunicationException("Reply could not be processed: " + e.getCause());
 		}
-
-		return newData;
 	}
 
 	/**
 	 * Higher layer function that invokes lower layer function that initializes the
-	 * serial port with various parameters.
+	 * serial port with various parameters. The port is only opened once, even if
+	 * several slaves share it.
 	 * 
 	 * @throws CommunicationException
 	 */
 	void initializeSerialPort() throws CommunicationException {
-		usc.initSerialPort();
+		bus.open();
 	}
 
 	/**
 	 * Function that tries to close the serial port through which communication
-	 * occurs.
+	 * occurs. Note that this closes the port for all slaves on the same bus.
 	 * 
 	 * @return true if port successfully closed, false otherwise
 	 */
 	boolean closeSerialPort() {
-		return usc.closeSerialPort();
-	}
-
-	/**
-	 * This function is used outside this class in a callback-function to set a
-	 * globally accessible function.
-	 * 
-	 * @param newData reply package from the TMC
-	 */
-	synchronized void setNewData(byte[] newData) {
-		this.newData = newData;
-		notifyAll(); // wake up functions that are waiting (wait())
+		return bus.close();
 	}
 
 }
@@ -0,0 +1,65 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * The faults that a status check of the motor can find. Apart from the velocity
+ * faults, which compare the actual velocity with the desired one, every fault
+ * corresponds to a flag of the TMC status register DRV_STATUS.
+ * <p>
+ * The faults are listed in the order in which
+ * {@link StepperMotor#checkMotorStatus()} reports them.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public enum MotorFault {
+	VELOCITY_TOO_LOW("Motor velocity too low", null),
+	VELOCITY_TOO_HIGH("Motor velocity too high", null),
+	STALL("Stall detected!", MotorStatus.Flag.STALLGUARD),
+	OVERTEMPERATURE_PREWARNING("Overtemperature pre-warning threshold is exceeded",
+			MotorStatus.Flag.OVERTEMPERATURE_PREWARNING),
+	OVERTEMPERATURE("Overtemperature!", MotorStatus.Flag.OVERTEMPERATURE),
+	OPEN_LOAD_A("Open load detected on Phase A!", MotorStatus.Flag.OPEN_LOAD_A),
+	OPEN_LOAD_B("Open load detected on Phase B!", MotorStatus.Flag.OPEN_LOAD_B),
+	SHORT_TO_GROUND_A("Short to ground detected on Phase A!", MotorStatus.Flag.SHORT_TO_GROUND_A),
+	SHORT_TO_GROUND_B("Short to ground detected on Phase B!", MotorStatus.Flag.SHORT_TO_GROUND_B);
+
+	private final String message;
+	private final MotorStatus.Flag flag;
+	private final int mask = 1 << ordinal();
+
+	MotorFault(String message, MotorStatus.Flag flag) {
+		this.message = message;
+		this.flag = flag;
+	}
+
+	/**
+	 * @return description of the fault, as carried by a DriverErrorException
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @return the DRV_STATUS flag behind the fault, or null for the velocity
+	 *         faults
+	 */
+	public MotorStatus.Flag getFlag() {
+		return flag;
+	}
+
+	/**
+	 * @return bit of the fault within a set of faults packed into an int
+	 */
+	int getMask() {
+		return mask;
+	}
+
+	/**
+	 * @param faults set of faults packed into an int
+	 * @return true if this fault is in the set
+	 */
+	boolean isIn(int faults) {
+		return (faults & mask) != 0;
+	}
+}
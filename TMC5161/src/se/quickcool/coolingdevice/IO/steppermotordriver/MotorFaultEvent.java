@@ -0,0 +1,65 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Tells a {@link MotorFaultListener} that a fault of a motor has been raised or
+ * has been cleared.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class MotorFaultEvent {
+	private final StepperMotor motor;
+	private final MotorFault fault;
+	private final boolean raised;
+	private final MotorStatus status;
+	private final long timestampMillis;
+
+	MotorFaultEvent(StepperMotor motor, MotorFault fault, boolean raised, MotorStatus status, long timestampMillis) {
+		this.motor = motor;
+		this.fault = fault;
+		this.raised = raised;
+		this.status = status;
+		this.timestampMillis = timestampMillis;
+	}
+
+	/**
+	 * @return the motor that the fault belongs to
+	 */
+	public StepperMotor getMotor() {
+		return motor;
+	}
+
+	/**
+	 * @return the fault that changed
+	 */
+	public MotorFault getFault() {
+		return fault;
+	}
+
+	/**
+	 * @return true if the fault has been raised, false if it has been cleared
+	 */
+	public boolean isRaised() {
+		return raised;
+	}
+
+	/**
+	 * @return the motor status in which the change was found
+	 */
+	public MotorStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return time of the status check that found the change, in milliseconds
+	 *         since the epoch
+	 */
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	@Override
+	public String toString() {
+		return fault + (raised ? " raised" : " cleared");
+	}
+}
@@ -0,0 +1,24 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * Receives the faults of a motor as they come and go. The listener is only
+ * told about changes: a fault is reported once when a status check finds it and
+ * once more when a later status check finds it gone. All faults found by one
+ * status check are reported, one event each, in the order of
+ * {@link MotorFault}.
+ * <p>
+ * <b>Note:</b> The listener is invoked on the thread that checks the motor
+ * status, e.g. the thread of a {@link MotorSupervisor}, and should return
+ * quickly.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ * @see StepperMotor#addFaultListener(MotorFaultListener)
+ */
+public interface MotorFaultListener {
+	/**
+	 * @param event the fault that has been raised or cleared
+	 */
+	void faultChanged(MotorFaultEvent event);
+}
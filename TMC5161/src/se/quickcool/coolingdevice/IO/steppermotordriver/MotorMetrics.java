@@ -0,0 +1,157 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class collects the traffic statistics of one motor driver: writes,
+ * answered reads, timeouts and CRC failures per register and a latency
+ * histogram per register. The histogram of a register is created the first time the register
+ * is read, after that recording does not allocate memory.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class MotorMetrics implements MotorMetricsMXBean {
+	private final int slaveAddress;
+	private final AtomicReferenceArray<LatencyHistogram> latencies = new AtomicReferenceArray<>(
+			DatagramEncoder.NUMBER_OF_REGISTERS);
+	private final AtomicLongArray writes = new AtomicLongArray(DatagramEncoder.NUMBER_OF_REGISTERS);
+	private final AtomicLongArray timeouts = new AtomicLongArray(DatagramEncoder.NUMBER_OF_REGISTERS);
+	private final AtomicLongArray crcFailures = new AtomicLongArray(DatagramEncoder.NUMBER_OF_REGISTERS);
+
+	MotorMetrics(int slaveAddress) {
+		this.slaveAddress = slaveAddress;
+	}
+
+	void writeSent(int registerAddress) {
+		writes.incrementAndGet(registerAddress);
+	}
+
+	void replyReceived(int registerAddress, long latencyNanos) {
+		LatencyHistogram histogram = latencies.get(registerAddress);
+		if (histogram == null) {
+			latencies.compareAndSet(registerAddress, null, new LatencyHistogram());
+			histogram = latencies.get(registerAddress);
+		}
+		histogram.record(latencyNanos);
+	}
+
+	void timedOut(int registerAddress) {
+		timeouts.incrementAndGet(registerAddress);
+	}
+
+	void crcFailure(int registerAddress) {
+		crcFailures.incrementAndGet(registerAddress);
+	}
+
+	/**
+	 * Adds the latencies of all registers to a histogram.
+	 *
+	 * @param total histogram to add to
+	 */
+	void addLatencies(LatencyHistogram total) {
+		for (int i = 0; i < latencies.length(); i++) {
+			LatencyHistogram histogram = latencies.get(i);
+			if (histogram != null) {
+				total.add(histogram);
+			}
+		}
+	}
+
+	@Override
+	public int getSlaveAddress() {
+		return slaveAddress;
+	}
+
+	@Override
+	public long getWriteCount() {
+		return sum(writes);
+	}
+
+	@Override
+	public long getReadCount() {
+		long count = 0;
+		for (int i = 0; i < latencies.length(); i++) {
+			LatencyHistogram histogram = latencies.get(i);
+			if (histogram != null) {
+				count += histogram.getCount();
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long getTimeoutCount() {
+		return sum(timeouts);
+	}
+
+	@Override
+	public long getCrcFailureCount() {
+		return sum(crcFailures);
+	}
+
+	@Override
+	public LatencyStatistics getReadLatency() {
+		LatencyHistogram total = new LatencyHistogram();
+		addLatencies(total);
+		return total.getStatistics();
+	}
+
+	@Override
+	public Map<String, LatencyStatistics> getRegisterLatencies() {
+		Map<String, LatencyStatistics> statistics = new TreeMap<>();
+		for (int i = 0; i < latencies.length(); i++) {
+			LatencyHistogram histogram = latencies.get(i);
+			if (histogram != null) {
+				statistics.put(registerName(i), histogram.getStatistics());
+			}
+		}
+		return statistics;
+	}
+
+	@Override
+	public Map<String, Long> getRegisterTimeouts() {
+		return perRegister(timeouts);
+	}
+
+	@Override
+	public Map<String, Long> getRegisterCrcFailures() {
+		return perRegister(crcFailures);
+	}
+
+	@Override
+	public void resetLatencies() {
+		for (int i = 0; i < latencies.length(); i++) {
+			LatencyHistogram histogram = latencies.get(i);
+			if (histogram != null) {
+				histogram.reset();
+			}
+		}
+	}
+
+	private static String registerName(int registerAddress) {
+		return String.format("0x%02X", registerAddress);
+	}
+
+	private static Map<String, Long> perRegister(AtomicLongArray counts) {
+		Map<String, Long> perRegister = new TreeMap<>();
+		for (int i = 0; i < counts.length(); i++) {
+			long count = counts.get(i);
+			if (count != 0) {
+				perRegister.put(registerName(i), count);
+			}
+		}
+		return perRegister;
+	}
+
+	private static long sum(AtomicLongArray counts) {
+		long sum = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			sum += counts.get(i);
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,67 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Map;
+
+/**
+ * Management interface of the traffic statistics of one motor driver on a bus.
+ * Registered with the platform MBean server as
+ * <code>se.quickcool.coolingdevice:type=MotorMetrics,bus=&lt;port&gt;,slave=&lt;address&gt;</code>
+ * while the bus is open. Counters only ever grow; the latency histograms can be
+ * reset.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public interface MotorMetricsMXBean {
+	/**
+	 * @return slave address of the driver
+	 */
+	int getSlaveAddress();
+
+	/**
+	 * @return number of Write Access datagrams sent to the driver
+	 */
+	long getWriteCount();
+
+	/**
+	 * @return number of Read Access requests answered by the driver
+	 */
+	long getReadCount();
+
+	/**
+	 * @return number of Read Access requests the driver did not answer in time
+	 */
+	long getTimeoutCount();
+
+	/**
+	 * @return number of replies of the driver that failed their CRC check
+	 */
+	long getCrcFailureCount();
+
+	/**
+	 * @return latency of the Read Access requests to any register
+	 */
+	LatencyStatistics getReadLatency();
+
+	/**
+	 * @return latency of the Read Access requests per register, keyed by the
+	 *         register address in hex, e.g. "0x6F"
+	 */
+	Map<String, LatencyStatistics> getRegisterLatencies();
+
+	/**
+	 * @return timeouts per register, keyed by the register address in hex
+	 */
+	Map<String, Long> getRegisterTimeouts();
+
+	/**
+	 * @return replies that failed their CRC check per register, keyed by the
+	 *         register address in hex
+	 */
+	Map<String, Long> getRegisterCrcFailures();
+
+	/**
+	 * Forgets the recorded latencies.
+	 */
+	void resetLatencies();
+}
@@ -1,230 +1,215 @@
 package se.quickcool.coolingdevice.IO.steppermotordriver;
 
 /**
- * This class contains methods that check and set the motor status based on
- * analysis of incoming reply packages. This allows user programs to monitor its
- * condition and operation to check if things are in order. Otherwise, the
- * appropriate error status is set allowing other parts of the program to make
- * decisions accordingly.
- * 
+ * This class is an immutable snapshot of the motor status based on analysis of
+ * incoming reply packages. This allows user programs to monitor its condition
+ * and operation to check if things are in order. Otherwise, the appropriate
+ * error flag is set allowing other parts of the program to make decisions
+ * accordingly.
+ * <p>
+ * The whole snapshot is packed into a single long: the complete DRV_STATUS
+ * register in the upper 32 bits and the sign extended VACTUAL register in the
+ * lower 32 bits. The packed value is what a status check publishes, through an
+ * AtomicLong, so any number of threads can read a consistent status without
+ * locks and without allocating memory. The static functions of this class
+ * decode a packed value directly; an instance merely wraps one for
+ * convenience.
+ * </p>
+ *
  * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
  * @version 1.0
  */
-class MotorStatus {
-	private int actualVelocityStatus;
-	private boolean dataCorruptStatus;
-	private boolean stallGuardStatus;
-	private boolean overTemperatureStatus;
-	private boolean openLoadIndicatorStatusPhaseA;
-	private boolean openLoadIndicatorStatusPhaseB;
-	private boolean shortToGroundIndicatorStatusPhaseA;
-	private boolean shortToGroundIndicatorStatusPhaseB;
-	private boolean overTemperaturePrewarningStatus;
-
+public final class MotorStatus {
 	/**
-	 * Returns the instantaneous value of the actual speed of the motor in
-	 * <i>microsteps per revolution</i>.
-	 * 
-	 * @return current actual motor speed
+	 * Status and error flags of the DRV_STATUS register. Refer to page 52 of
+	 * TMC5161 datasheet.
 	 */
-	int getActualVelocityStatus() {
-		return actualVelocityStatus;
+	public enum Flag {
+		/**
+		 * stallGuard2 status. The stall guard is a function installed in the TMC that
+		 * checks automatically for any motor stalls. Stalling means that the motor
+		 * rotational movement is impeded which prevents it from rotating any
+		 * further.
+		 */
+		STALLGUARD(24),
+		/**
+		 * The motor temperature has exceeded the maximum allowed temperature
+		 * threshold, a selectable 136 °C/ 143 °C/ 150 °C thermal shutdown.
+		 */
+		OVERTEMPERATURE(25),
+		/**
+		 * The motor temperature has crossed the warning threshold for
+		 * overtemperature at 120°C.
+		 */
+		OVERTEMPERATURE_PREWARNING(26),
+		/**
+		 * Motor coil A has been shorted to ground, e.g. through a badly connected
+		 * cable. The driver becomes disabled and the flag stays active until the
+		 * driver is disabled by software (TOFF=0).
+		 */
+		SHORT_TO_GROUND_A(27),
+		/**
+		 * Motor coil B has been shorted to ground, see {@link #SHORT_TO_GROUND_A}.
+		 */
+		SHORT_TO_GROUND_B(28),
+		/**
+		 * Open load on motor coil A: the TMC could not reach the desired coil
+		 * current, e.g. because a connector is not firmly plugged.
+		 */
+		OPEN_LOAD_A(29),
+		/**
+		 * Open load on motor coil B, see {@link #OPEN_LOAD_A}.
+		 */
+		OPEN_LOAD_B(30),
+		/**
+		 * The motor is at standstill.
+		 */
+		STANDSTILL(31);
+
+		private final int mask;
+
+		Flag(int bit) {
+			this.mask = 1 << bit;
+		}
+
+		/**
+		 * @return mask of the flag within the DRV_STATUS register
+		 */
+		public int getMask() {
+			return mask;
+		}
+
+		/**
+		 * @param status packed motor status
+		 * @return true if the flag is set in the status
+		 */
+		public boolean isSet(long status) {
+			return (driverStatus(status) & mask) != 0;
+		}
 	}
 
 	/**
-	 * Set the value of the current motor speed to the value received from the TMC.
-	 * <p>
-	 * <b>Note:</b> This function does not set a new speed for the motor, rather
-	 * just a status value that can be rechecked when a user program inquires
-	 * velocity status.
-	 * </p>
-	 * 
-	 * @param actualVelocityStatus actual velocity of motor in units of microsteps
-	 *                             per revolution
+	 * Status before the first status check: velocity 0 and no flags set.
 	 */
-	void setActualVelocityStatus(int actualVelocityStatus) {
-		this.actualVelocityStatus = actualVelocityStatus;
-	}
+	public static final MotorStatus UNKNOWN = new MotorStatus(0);
+
+	private static final int SG_RESULT = 0x3FF; // bit 0-9: stallGuard2 result
+	private static final int CS_ACTUAL_SHIFT = 16, CS_ACTUAL = 0x1F; // bit 16-20: actual motor current
+
+	private final long status;
 
 	/**
-	 * Corrupt data means data that is incomplete or has distorted bytes. This
-	 * function returns the result of an data-integrity-check of a reply package.
-	 * 
-	 * @return whether the data is corrupt or not
+	 * @param status packed motor status, see {@link #pack(int, int)}
 	 */
-	boolean getDataCorruptStatus() {
-		return dataCorruptStatus;
+	public MotorStatus(long status) {
+		this.status = status;
 	}
 
 	/**
-	 * Set the status of an incoming data package from the TMC to whether if it is
-	 * corrupt or not.
-	 * 
-	 * @param dataCorruptStatus boolean value indicating corruption status of a
-	 *                          reply package
+	 * Packs a status snapshot into a single long.
+	 *
+	 * @param driverStatus   contents of the DRV_STATUS register
+	 * @param actualVelocity sign extended contents of the VACTUAL register
+	 * @return packed motor status
 	 */
-	void setDataCorruptStatus(boolean dataCorruptStatus) {
-		this.dataCorruptStatus = dataCorruptStatus;
+	public static long pack(int driverStatus, int actualVelocity) {
+		return (long) driverStatus << 32 | (actualVelocity & 0xFFFFFFFFL);
 	}
 
 	/**
-	 * The status of the stall guard indicates whether the motor has stalled due any
-	 * kind of stoppage. This function returns if the motor has stalled or not. The
-	 * stall guard is a function installed in the TMC that checks automatically for
-	 * any motor stalls. Stalling means that the motor rotational movement is
-	 * impeded which prevents it from rotating any further.
-	 * 
-	 * @return boolean value indicating if the motor has stalled or not
+	 * @param status packed motor status
+	 * @return contents of the DRV_STATUS register
 	 */
-	boolean getStallGuardStatus() {
-		return stallGuardStatus;
+	public static int driverStatus(long status) {
+		return (int) (status >>> 32);
 	}
 
 	/**
-	 * Set the status of the stall guard to a value that indicates whether the motor
-	 * has stalled or not. The stall guard is a function installed in the TMC that
-	 * checks automatically for any motor stalls. Stalling means that the motor
-	 * rotational movement is impeded which prevents it from further rotation.
-	 * 
-	 * @param stallGuardStatus
+	 * @param status packed motor status
+	 * @return actual velocity of the motor in microsteps per t, negative when the
+	 *         motor turns in negative direction
 	 */
-	void setStallGuardStatus(boolean stallGuardStatus) {
-		this.stallGuardStatus = stallGuardStatus;
+	public static int actualVelocity(long status) {
+		return (int) status;
 	}
 
 	/**
-	 * Returns whether the motor device has crossed the warning threshold for
-	 * overtemperature.
-	 * <p>
-	 * <b>Note:</b> Prewarning occurs at 120°C.
-	 * </p>
-	 * 
-	 * @return value in register that indicates if the motor temperature has
-	 *         exceeded the prewarning threshold
+	 * The stall detection compares SG_RESULT to 0 in order to detect a stall.
+	 *
+	 * @param status packed motor status
+	 * @return true if the motor has stalled
 	 */
-	boolean getOverTemperaturePrewarningStatus() {
-		return overTemperaturePrewarningStatus;
+	public static boolean isStalled(long status) {
+		return Flag.STALLGUARD.isSet(status) && (driverStatus(status) & SG_RESULT) == 0;
 	}
 
 	/**
-	 * Set the overtemperature prewarning status according to whether the motor
-	 * temperature has exceeded the prewarning threshold or not.
-	 * 
-	 * @param overTemperaturePrewarningStatus
+	 * @return the packed motor status
 	 */
-	void setOverTemperaturePrewarningStatus(boolean overTemperaturePrewarningStatus) {
-		this.overTemperaturePrewarningStatus = overTemperaturePrewarningStatus;
+	public long getPackedStatus() {
+		return status;
 	}
 
 	/**
-	 * Return if the current motor temperature has exceeded the maximum allowed
-	 * temperature threshold.
-	 * <p>
-	 * <b>Note:</b> Prewarning occurs at 120°C, after that a selectable 136 °C/ 143
-	 * °C/ 150 °C thermal shutdown.
-	 * </p>
-	 * 
-	 * @return whether the motor has crossed overtemperature threshold
+	 * Returns the instantaneous value of the actual speed of the motor.
+	 *
+	 * @return actual velocity in microsteps per t, negative when the motor turns
+	 *         in negative direction
 	 */
-	boolean getOverTemperatureStatus() {
-		return overTemperatureStatus;
+	public int getActualVelocity() {
+		return actualVelocity(status);
 	}
 
 	/**
-	 * Set if the current motor temperature has exceeded the maximum allowed
-	 * temperature threshold.
-	 * <p>
-	 * <b>Note:</b> Prewarning occurs at 120°C, after that a selectable 136 °C/ 143
-	 * °C/ 150 °C thermal shutdown.
-	 * </p>
-	 * 
-	 * @param overTemperatureStatus
+	 * @return contents of the DRV_STATUS register
 	 */
-	void setOverTemperatureStatus(boolean overTemperatureStatus) {
-		this.overTemperatureStatus = overTemperatureStatus;
+	public int getDriverStatus() {
+		return driverStatus(status);
 	}
 
 	/**
-	 * The TMC5161 detects open load conditions by checking, if it can reach the
-	 * desired motor coil current. Interrupted cables are a common cause for systems
-	 * failing, e.g. when connectors are not firmly plugged.
-	 * 
-	 * @param phase representation of the motor coil to be checked for any open load
-	 * @return open load indication (i.e. interrupted coil connection)
+	 * @param flag status or error flag
+	 * @return true if the flag is set
 	 */
-	boolean getOpenLoadIndicatorStatus(String phase) {
-		switch (phase) {
-		case "Phase A":
-			return openLoadIndicatorStatusPhaseA;
-		case "Phase B":
-			return openLoadIndicatorStatusPhaseB;
-		default:
-			break;
-		}
-		return false;
+	public boolean isSet(Flag flag) {
+		return flag.isSet(status);
 	}
 
 	/**
-	 * Set whether any open load has occurred on the motor coils.
-	 * <p>
-	 * <b>Note:</b> Open load means the current on a motor coil has been
-	 * interrupted, for instance through a connector being poorly plugged in.
-	 * </p>
-	 * 
-	 * @param phase                   string representation of the motor coil to be
-	 *                                checked for any open load
-	 * @param openLoadIndicatorStatus actual status of the TMC:s open load
-	 *                                monitoring
+	 * @return true if the motor has stalled
 	 */
-	void setOpenLoadIndicatorStatus(String phase, boolean openLoadIndicatorStatus) {
-		if (phase.equals("Phase A")) {
-			this.openLoadIndicatorStatusPhaseA = openLoadIndicatorStatus;
-		} else if (phase.equals("Phase B")) {
-			this.openLoadIndicatorStatusPhaseB = openLoadIndicatorStatus;
-		} else {
-			System.out.println("Wrong input - the format " + phase + " is incorrect");
-		}
+	public boolean isStalled() {
+		return isStalled(status);
 	}
 
 	/**
-	 * Return an indication of whether a motor coil has been shorted to ground, e.g.
-	 * through a badly connected cable. The TMC examines this by measuring the
-	 * current on the coil reaches the desired value.
-	 * 
-	 * @param phase string representation of the motor coil to be checked for
-	 *              shortage
-	 * @return status for short to ground detection
+	 * @return stallGuard2 result, a measure of the motor load where 0 means
+	 *         highest load
 	 */
-	boolean getShortToGroundIndicatorStatus(String phase) {
-		switch (phase) {
-		case "Phase A":
-			return shortToGroundIndicatorStatusPhaseA;
-		case "Phase B":
-			return shortToGroundIndicatorStatusPhaseB;
-		default:
-			break;
-		}
-		return false;
+	public int getStallGuardResult() {
+		return getDriverStatus() & SG_RESULT;
 	}
 
 	/**
-	 * Set an indication of whether a motor coil has been shorted to ground, e.g.
-	 * through a badly connected cable. The TMC examines this by measuring the
-	 * current on the coil.
-	 * 
-	 * @param phase                        string representation of the motor coil
-	 *                                     to be checked for shortage
-	 * @param shortToGroundIndicatorStatus actual status of the TMC:s short to
-	 *                                     ground monitoring
+	 * @return actual motor current scaling, 0 to 31
 	 */
-	void setShortToGroundIndicatorStatus(String phase, boolean shortToGroundIndicatorStatus) {
-		if (phase.equals("Phase A")) {
-			this.shortToGroundIndicatorStatusPhaseA = shortToGroundIndicatorStatus;
-		} else if (phase.equals("Phase B")) {
-			this.shortToGroundIndicatorStatusPhaseB = shortToGroundIndicatorStatus;
-		} else {
-			System.out.println("Wrong input - the format " + phase + " is incorrect");
-		}
+	public int getActualCurrent() {
+		return getDriverStatus() >>> CS_ACTUAL_SHIFT & CS_ACTUAL;
 	}
 
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof MotorStatus && ((MotorStatus) other).status == status;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(status);
+	}
+
+	@Override
+	public String toString() {
+		return "MotorStatus[velocity=" + getActualVelocity() + ", DRV_STATUS=0x"
+				+ Integer.toHexString(getDriverStatus()).toUpperCase() + "]";
+	}
 }
@@ -0,0 +1,341 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class supervises any number of stepper motors. Every motor is watched by
+ * a thread of its own which periodically checks the motor status, reports
+ * faults, resets the motor when its reset policy asks for it and resets the
+ * position counter so that the motor keeps rotating. Since every motor has its
+ * own thread and every serial port its own I/O thread, a slow or faulty motor
+ * never delays the supervision of the others.
+ * <p>
+ * A motor is either checked at a fixed period, reading all of its status
+ * registers every time, or adaptively after a {@link StatusPollingPolicy},
+ * which reads each status register at a rate that follows the state of the
+ * motor.
+ * </p>
+ * <p>
+ * On a Java runtime that supports virtual threads (Java 21 and later) the
+ * supervision threads are virtual, so hundreds of motors can be supervised
+ * without hundreds of platform threads. On older runtimes ordinary daemon
+ * threads are used.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class MotorSupervisor {
+	/**
+	 * Receives the faults that occur while a motor is supervised.
+	 */
+	public interface FaultHandler {
+		/**
+		 * @param motor the supervised motor
+		 * @param fault the exception thrown by the status check or the reset
+		 */
+		void faultOccurred(StepperMotor motor, Exception fault);
+	}
+
+	/**
+	 * Decides whether a motor is to be reset after a fault.
+	 */
+	public interface ResetPolicy {
+		/**
+		 * @param fault the exception thrown by the status check
+		 * @return true if the motor is to be reset
+		 */
+		boolean resetAfter(Exception fault);
+	}
+
+	/**
+	 * Resets the motor after every fault except a stall and an overtemperature
+	 * pre-warning, which the motor is expected to recover from on its own.
+	 */
+	public static final ResetPolicy RESET_UNLESS_STALL_OR_PREWARNING = fault -> {
+		MotorFault motorFault = fault instanceof DriverErrorException ? ((DriverErrorException) fault).getFault() : null;
+		return motorFault != MotorFault.STALL && motorFault != MotorFault.OVERTEMPERATURE_PREWARNING;
+	};
+
+	/**
+	 * Never resets the motor.
+	 */
+	public static final ResetPolicy NEVER_RESET = fault -> false;
+
+	/**
+	 * Logs the fault as a warning through {@link DriverLog}, together with its
+	 * stack trace.
+	 */
+	public static final FaultHandler PRINT_FAULT = (motor, fault) -> DriverLog
+			.warn("Exception thrown: " + fault.getLocalizedMessage(), fault);
+
+	private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+
+	private final Map<StepperMotor, Supervision> supervisions = new ConcurrentHashMap<>();
+	private final AtomicInteger threadNumber = new AtomicInteger();
+
+	/**
+	 * Starts supervising a motor with the default fault handling, which prints
+	 * the fault and resets the motor unless it stalled or reached the
+	 * overtemperature pre-warning threshold.
+	 *
+	 * @param motor        motor that has already been started
+	 * @param periodMillis time between two status checks
+	 * @param rps          velocity that the motor is restarted at after a reset
+	 */
+	public void supervise(StepperMotor motor, long periodMillis, double rps) {
+		supervise(motor, periodMillis, rps, PRINT_FAULT, RESET_UNLESS_STALL_OR_PREWARNING);
+	}
+
+	/**
+	 * Starts supervising a motor. Supervising a motor that is already supervised
+	 * replaces its previous supervision.
+	 *
+	 * @param motor        motor that has already been started
+	 * @param periodMillis time between two status checks
+	 * @param rps          velocity that the motor is restarted at after a reset
+	 * @param faultHandler receives every fault of the motor
+	 * @param resetPolicy  decides whether the motor is reset after a fault
+	 */
+	public void supervise(StepperMotor motor, long periodMillis, double rps, FaultHandler faultHandler,
+			ResetPolicy resetPolicy) {
+		if (periodMillis <= 0) {
+			throw new IllegalArgumentException("Supervision period must be positive");
+		}
+		start(new Supervision(motor, TimeUnit.MILLISECONDS.toNanos(periodMillis), null, rps, faultHandler,
+				resetPolicy));
+	}
+
+	/**
+	 * Starts supervising a motor adaptively with the default fault handling, see
+	 * {@link #supervise(StepperMotor, long, double)}.
+	 *
+	 * @param motor   motor that has already been started
+	 * @param polling polling rates of the status registers
+	 * @param rps     velocity that the motor is restarted at after a reset
+	 */
+	public void supervise(StepperMotor motor, StatusPollingPolicy polling, double rps) {
+		supervise(motor, polling, rps, PRINT_FAULT, RESET_UNLESS_STALL_OR_PREWARNING);
+	}
+
+	/**
+	 * Starts supervising a motor adaptively. VACTUAL and DRV_STATUS are read at
+	 * rates of their own, which follow the state of the motor as described in
+	 * {@link StatusPollingPolicy}. The position counter is reset at the normal
+	 * DRV_STATUS rate. Supervising a motor that is already supervised replaces its
+	 * previous supervision.
+	 *
+	 * @param motor        motor that has already been started
+	 * @param polling      polling rates of the status registers, copied so that
+	 *                     later changes do not affect this supervision
+	 * @param rps          velocity that the motor is restarted at after a reset
+	 * @param faultHandler receives every fault of the motor
+	 * @param resetPolicy  decides whether the motor is reset after a fault
+	 */
+	public void supervise(StepperMotor motor, StatusPollingPolicy polling, double rps, FaultHandler faultHandler,
+			ResetPolicy resetPolicy) {
+		start(new Supervision(motor, TimeUnit.MILLISECONDS.toNanos(polling.getDriverStatusPeriodMillis()),
+				new StatusPoller(polling), rps, faultHandler, resetPolicy));
+	}
+
+	private void start(Supervision supervision) {
+		Supervision previous = supervisions.put(supervision.motor, supervision);
+		if (previous != null) {
+			previous.stop();
+		}
+		Thread thread = newThread(supervision, "TMC5161 supervisor " + threadNumber.incrementAndGet());
+		supervision.thread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Stops supervising a motor. The motor itself keeps running.
+	 *
+	 * @param motor supervised motor
+	 */
+	public void stopSupervising(StepperMotor motor) {
+		Supervision supervision = supervisions.remove(motor);
+		if (supervision != null) {
+			supervision.stop();
+		}
+	}
+
+	/**
+	 * Stops supervising all motors.
+	 */
+	public void shutdown() {
+		for (StepperMotor motor : supervisions.keySet()) {
+			stopSupervising(motor);
+		}
+	}
+
+	/**
+	 * @return number of motors currently supervised
+	 */
+	public int getSupervisedCount() {
+		return supervisions.size();
+	}
+
+	/**
+	 * @return true if the supervision threads are virtual threads
+	 */
+	public static boolean usesVirtualThreads() {
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/**
+	 * Creates a virtual thread if the runtime supports them, otherwise a daemon
+	 * thread. The thread is not started.
+	 *
+	 * @param task what the thread runs
+	 * @param name name of the thread
+	 * @return the new thread
+	 */
+	static Thread newThread(Runnable task, String name) {
+		Thread thread = VIRTUAL_THREAD_FACTORY != null ? VIRTUAL_THREAD_FACTORY.newThread(task) : new Thread(task);
+		thread.setName(name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null; // runtime without virtual threads
+		}
+	}
+
+	private static final class Supervision implements Runnable {
+		private final StepperMotor motor;
+		private final long periodNanos;
+		private final StatusPoller poller; // null when checked at a fixed period
+		private final double rps;
+		private final FaultHandler faultHandler;
+		private final ResetPolicy resetPolicy;
+		private volatile boolean stopped;
+		private volatile Thread thread;
+
+		Supervision(StepperMotor motor, long periodNanos, StatusPoller poller, double rps, FaultHandler faultHandler,
+				ResetPolicy resetPolicy) {
+			this.motor = motor;
+			this.periodNanos = periodNanos;
+			this.poller = poller;
+			this.rps = rps;
+			this.faultHandler = faultHandler;
+			this.resetPolicy = resetPolicy;
+		}
+
+		void stop() {
+			stopped = true;
+			Thread supervisionThread = thread;
+			if (supervisionThread != null) {
+				LockSupport.unpark(supervisionThread);
+			}
+		}
+
+		@Override
+		public void run() {
+			if (poller != null) {
+				runAdaptive();
+				return;
+			}
+			long nextCheck = System.nanoTime();
+			while (!stopped) {
+				try {
+					motor.checkMotorStatus();
+				} catch (CommunicationException | DataCorruptException | DriverErrorException e) {
+					faultHandler.faultOccurred(motor, e);
+					if (resetPolicy.resetAfter(e)) {
+						reset();
+					}
+				} catch (RuntimeException e) {
+					faultHandler.faultOccurred(motor, e); // e.g. the bus has been closed
+				}
+				resetPositionCounter();
+
+				nextCheck += periodNanos;
+				long delay;
+				while (!stopped && (delay = nextCheck - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+				}
+				if (nextCheck < System.nanoTime()) {
+					nextCheck = System.nanoTime(); // overran the period: do not try to catch up
+				}
+			}
+		}
+
+		private void runAdaptive() {
+			long nextPositionReset = System.nanoTime();
+			while (!stopped) {
+				long now = System.nanoTime();
+				int due = poller.due(now);
+				if (due != 0) {
+					check(due, now);
+				}
+				if (now - nextPositionReset >= 0) {
+					resetPositionCounter();
+					nextPositionReset = now + periodNanos;
+				}
+
+				long nextPoll = poller.nextDue();
+				long wakeUp = nextPoll - nextPositionReset < 0 ? nextPoll : nextPositionReset;
+				long delay;
+				while (!stopped && (delay = wakeUp - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+				}
+			}
+		}
+
+		private void check(int registers, long now) {
+			try {
+				motor.checkMotorStatus((registers & StatusPoller.VELOCITY) != 0,
+						(registers & StatusPoller.DRIVER_STATUS) != 0);
+				poller.polled(registers, motor.getMotorStatus().getPackedStatus(), now);
+			} catch (DriverErrorException e) {
+				poller.polled(registers, motor.getMotorStatus().getPackedStatus(), now); // the status was read
+				faultHandler.faultOccurred(motor, e);
+				if (resetPolicy.resetAfter(e)) {
+					reset();
+				}
+			} catch (CommunicationException | DataCorruptException e) {
+				poller.skipped(registers, now);
+				faultHandler.faultOccurred(motor, e);
+				if (resetPolicy.resetAfter(e)) {
+					reset();
+				}
+			} catch (RuntimeException e) {
+				poller.skipped(registers, now);
+				faultHandler.faultOccurred(motor, e); // e.g. the bus has been closed
+			}
+		}
+
+		/**
+		 * Keeps the motor rotating, unless it follows a trajectory, which needs the
+		 * position counter.
+		 */
+		private void resetPositionCounter() {
+			try {
+				motor.resetPositionCounterUnlessFollowingTrajectory();
+			} catch (CommunicationException | RuntimeException e) {
+				faultHandler.faultOccurred(motor, e);
+			}
+		}
+
+		private void reset() {
+			try {
+				motor.resetMotor(rps);
+			} catch (CommunicationException | RuntimeException e) {
+				faultHandler.faultOccurred(motor, e); // e.g. the bus has been closed
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class knows how the TMC5161 registers may be accessed. Most of the
+ * configuration registers are write only, a few can also be read back, and some
+ * are updated by the chip itself while the motor is running. The access types
+ * are taken from the register map in the TMC5161 datasheet.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class RegisterAccess {
+	static final byte GCONF = 0x00, GSTAT = 0x01, IFCNT = 0x02, IOIN = 0x04, RAMPMODE = 0x20, XACTUAL = 0x21,
+			VACTUAL = 0x22, XTARGET = 0x2D, RAMP_STAT = 0x35, XLATCH = 0x36, MSCNT = 0x6A, MSCURACT = 0x6B,
+			CHOPCONF = 0x6C, DRV_STATUS = 0x6F, PWM_SCALE = 0x71, PWM_AUTO = 0x72;
+	// write only
+	static final byte SLAVECONF = 0x03, IHOLD_IRUN = 0x10, AMAX = 0x26, VMAX = 0x27, DMAX = 0x28;
+
+	private static final boolean[] READABLE = new boolean[DatagramEncoder.NUMBER_OF_REGISTERS];
+	private static final boolean[] UPDATED_BY_CHIP = new boolean[DatagramEncoder.NUMBER_OF_REGISTERS];
+	private static final boolean[] SAFETY_RELEVANT = new boolean[DatagramEncoder.NUMBER_OF_REGISTERS];
+
+	static {
+		for (byte register : new byte[] { GCONF, GSTAT, IFCNT, IOIN, RAMPMODE, XACTUAL, VACTUAL, XTARGET, RAMP_STAT,
+				XLATCH, MSCNT, MSCURACT, CHOPCONF, DRV_STATUS, PWM_SCALE, PWM_AUTO }) {
+			READABLE[register] = true;
+		}
+		for (byte register : new byte[] { GSTAT, IFCNT, IOIN, XACTUAL, VACTUAL, RAMP_STAT, XLATCH, MSCNT, MSCURACT,
+				DRV_STATUS, PWM_SCALE, PWM_AUTO }) {
+			UPDATED_BY_CHIP[register] = true;
+		}
+		for (byte register : new byte[] { GCONF, SLAVECONF, IHOLD_IRUN, RAMPMODE, XACTUAL, AMAX, VMAX, DMAX, XTARGET,
+				CHOPCONF }) {
+			SAFETY_RELEVANT[register] = true;
+		}
+	}
+
+	private RegisterAccess() {
+	}
+
+	/**
+	 * @param registerAddress register address
+	 * @return true if the register can be read across the UART interface
+	 */
+	static boolean isReadable(byte registerAddress) {
+		return READABLE[registerAddress & 0x7F];
+	}
+
+	/**
+	 * Registers such as XACTUAL or the status registers change on their own while
+	 * the motor runs, so a value written or read earlier says nothing about their
+	 * current contents.
+	 *
+	 * @param registerAddress register address
+	 * @return true if the chip itself changes the contents of the register
+	 */
+	static boolean isUpdatedByChip(byte registerAddress) {
+		return UPDATED_BY_CHIP[registerAddress & 0x7F];
+	}
+
+	/**
+	 * Registers that set the motion, the motor current or the driver itself, or
+	 * the address the chip answers at. A wrong value in one of them is not merely
+	 * inefficient, so a write to them must not be skipped on the strength of a
+	 * write that was never confirmed.
+	 *
+	 * @param registerAddress register address
+	 * @return true if the register is safety relevant
+	 */
+	static boolean isSafetyRelevant(byte registerAddress) {
+		return SAFETY_RELEVANT[registerAddress & 0x7F];
+	}
+
+	/**
+	 * @param registerAddress register address
+	 * @return true if a value written to the register can be confirmed by reading
+	 *         it back
+	 */
+	static boolean isReadBackVerifiable(byte registerAddress) {
+		return isReadable(registerAddress) && !isUpdatedByChip(registerAddress);
+	}
+}
@@ -0,0 +1,117 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class stores the register image of a motor driver, i.e. the contents of
+ * its shadow registers, in a small binary file so that a restarted program
+ * knows what the driver has been configured with. Only the registers that the
+ * program has written and the chip does not change by itself are stored.
+ * <p>
+ * File layout, big endian: the magic bytes "TMC5", a format version byte, the
+ * number of entries, one register address byte and one 32-bit value per entry
+ * and finally a CRC-32 of everything before it. A full configuration takes
+ * less than 100 bytes. The file is written to a temporary file first and then
+ * moved into place, so a crash while saving leaves the previous image intact.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class RegisterImageFile {
+	private static final int MAGIC = 'T' << 24 | 'M' << 16 | 'C' << 8 | '5';
+	private static final int VERSION = 1;
+	private static final int ENTRY_LENGTH = 5;
+
+	private RegisterImageFile() {
+	}
+
+	/**
+	 * Writes the register image of a driver to a file.
+	 *
+	 * @param file   file to write
+	 * @param shadow shadow registers of the driver
+	 * @throws IOException if the file could not be written
+	 */
+	static void save(Path file, ShadowRegisters shadow) throws IOException {
+		int count = 0;
+		for (int register = 0; register < DatagramEncoder.NUMBER_OF_REGISTERS; register++) {
+			if (isStored(shadow, (byte) register)) {
+				count++;
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(10 + count * ENTRY_LENGTH);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(count);
+		for (int register = 0; register < DatagramEncoder.NUMBER_OF_REGISTERS; register++) {
+			if (isStored(shadow, (byte) register)) {
+				out.writeByte(register);
+				out.writeInt(shadow.get((byte) register));
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeInt((int) crc.getValue());
+		out.flush();
+
+		Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temporary, bytes.toByteArray());
+		try {
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING); // no atomic move on this file system
+		}
+	}
+
+	/**
+	 * Reads a register image written by {@link #save(Path, ShadowRegisters)}.
+	 *
+	 * @param file file to read
+	 * @return the register image, or null if there is no file
+	 * @throws IOException if the file could not be read or is damaged
+	 */
+	static ShadowRegisters load(Path file) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(bytes);
+			if (in.getInt() != MAGIC || in.get() != VERSION) {
+				throw new IOException(file + " is not a register image");
+			}
+			int count = in.get() & 0xFF;
+			int length = in.position() + count * ENTRY_LENGTH;
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, length);
+			ShadowRegisters image = new ShadowRegisters();
+			for (int i = 0; i < count; i++) {
+				byte register = in.get();
+				image.recordWrite(register, in.getInt());
+			}
+			if (in.getInt() != (int) crc.getValue()) {
+				throw new IOException(file + " is damaged");
+			}
+			return image;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException(file + " is truncated");
+		}
+	}
+
+	private static boolean isStored(ShadowRegisters shadow, byte registerAddress) {
+		return shadow.isKnown(registerAddress) && !RegisterAccess.isUpdatedByChip(registerAddress);
+	}
+}
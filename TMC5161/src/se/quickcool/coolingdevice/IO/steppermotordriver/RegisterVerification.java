@@ -0,0 +1,133 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class checks that readable registers of a motor driver hold the values
+ * they are expected to hold, e.g. after the driver has been configured. The
+ * expectations are added once as (register, expected value, mask) and can then
+ * be verified any number of times. A verification reads all registers in one
+ * pipelined burst and compares the masked register values as plain integers,
+ * kept in parallel arrays. The comparison allocates only for registers that do
+ * not match, but the burst itself does not come for free: every read request
+ * gets a future, and every reply is decoded into a datagram of its own.
+ * <p>
+ * If a reply of the burst gets lost, the whole burst is read again, up to
+ * three times. Only registers whose bits are not cleared by reading should
+ * therefore be verified.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class RegisterVerification {
+	static final int ALL_BITS = 0xFFFFFFFF;
+	private static final int MAX_READ_ATTEMPTS = 3;
+
+	private byte[] registers = new byte[4];
+	private int[] expected = new int[4];
+	private int[] masks = new int[4];
+	private int[] actual = new int[4];
+	private int size;
+	// guards the arrays; a lock rather than the monitor, since verify waits for the bus
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Expects a register to hold exactly the given value.
+	 *
+	 * @param registerAddress address of a readable register
+	 * @param expectedValue   value that the register should hold
+	 * @return this verification
+	 */
+	RegisterVerification expect(byte registerAddress, int expectedValue) {
+		return expect(registerAddress, expectedValue, ALL_BITS);
+	}
+
+	/**
+	 * Expects the bits of a register that are set in the mask to equal those of
+	 * the given value. The other bits are not checked, e.g. status bits in an
+	 * otherwise static register.
+	 *
+	 * @param registerAddress address of a readable register
+	 * @param expectedValue   value that the register should hold
+	 * @param mask            bits that are checked
+	 * @return this verification
+	 */
+	RegisterVerification expect(byte registerAddress, int expectedValue, int mask) {
+		if (!RegisterAccess.isReadable(registerAddress)) {
+			throw new IllegalArgumentException(
+					String.format("Register 0x%02X is write only and can not be verified", registerAddress));
+		}
+		lock.lock();
+		try {
+			if (size == registers.length) {
+				registers = Arrays.copyOf(registers, size * 2);
+				expected = Arrays.copyOf(expected, size * 2);
+				masks = Arrays.copyOf(masks, size * 2);
+				actual = Arrays.copyOf(actual, size * 2);
+			}
+			registers[size] = registerAddress;
+			expected[size] = expectedValue & mask;
+			masks[size] = mask;
+			size++;
+		} finally {
+			lock.unlock();
+		}
+		return this;
+	}
+
+	/**
+	 * @return number of registers that are verified
+	 */
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads all registers back-to-back and compares them with the expected
+	 * values. A burst with a lost reply is read again.
+	 *
+	 * @param mdc communication object of the motor driver
+	 * @return report listing the registers that did not match
+	 * @throws CommunicationException if a reply of every attempt did not arrive
+	 *                                within the waiting time
+	 */
+	VerificationReport verify(MotorDriverCommunication mdc) throws CommunicationException {
+		lock.lock();
+		try {
+			long start = System.nanoTime();
+			for (int attempt = 1;; attempt++) {
+				try {
+					mdc.readRegisters(registers, size, actual);
+					break;
+				} catch (CommunicationException e) {
+					if (attempt == MAX_READ_ATTEMPTS) {
+						throw e;
+					}
+				}
+			}
+			List<VerificationReport.Mismatch> mismatches = null;
+			for (int i = 0; i < size; i++) {
+				if ((actual[i] & masks[i]) != expected[i]) {
+					if (mismatches == null) {
+						mismatches = new ArrayList<>();
+					}
+					mismatches.add(new VerificationReport.Mismatch(registers[i], expected[i], actual[i], masks[i]));
+				}
+			}
+			return new VerificationReport(size, mismatches == null ? Collections.emptyList() : mismatches,
+					System.nanoTime() - start);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
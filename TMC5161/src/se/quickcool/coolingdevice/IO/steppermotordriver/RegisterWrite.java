@@ -0,0 +1,33 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class represents a single Write Access to a TMC5161 register, i.e. a
+ * register address together with the 32-bit value that is to be written to
+ * it. Instances are used to hand a whole group of writes to the communication
+ * layer at once.
+ * 
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class RegisterWrite {
+	private final byte registerAddress;
+	private final long datagram;
+
+	/**
+	 * @param registerAddress The address of the register that is to be written to
+	 * @param datagram        32-bit data value which to be written to the register
+	 *                        address
+	 */
+	RegisterWrite(byte registerAddress, long datagram) {
+		this.registerAddress = registerAddress;
+		this.datagram = datagram;
+	}
+
+	byte getRegisterAddress() {
+		return registerAddress;
+	}
+
+	long getDatagram() {
+		return datagram;
+	}
+}
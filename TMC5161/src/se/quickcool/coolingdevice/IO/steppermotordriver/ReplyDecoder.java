@@ -0,0 +1,176 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.function.Consumer;
+
+/**
+ * This class reassembles reply packages from the raw byte stream arriving at
+ * the serial port. The serial port does not respect datagram boundaries: a
+ * reply may be split across several serial events, several replies may arrive
+ * in one event and, on the single wire interface, every request we send is
+ * echoed back to us as well.
+ * <p>
+ * Incoming bytes are therefore collected in a fixed ring buffer and scanned for
+ * datagrams. A reply package starts with the sync byte 0x05 followed by the
+ * master address 0xFF and is only delivered once all 8 bytes have arrived and
+ * the CRC byte matches. Datagrams that start with the sync byte followed by a
+ * slave address are echoes of our own read or write requests and are dropped.
+ * Whenever a candidate datagram fails its CRC check, a single byte is discarded
+ * and the scan continues, which resynchronizes the decoder with the stream.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+class ReplyDecoder {
+	private static final int RING_SIZE = 256; // must be a power of two
+	private static final int RING_MASK = RING_SIZE - 1;
+
+	private final byte[] ring = new byte[RING_SIZE];
+	private final byte[] candidate = new byte[DatagramEncoder.REPLY_LENGTH];
+	private final Consumer<byte[]> replyConsumer;
+	private final Consumer<byte[]> corruptReplyConsumer;
+
+	private int readIndex, writeIndex; // free-running, masked on access
+	private long discardedBytes, droppedEchoes, deliveredReplies;
+	private long receivedBytes, crcFailures, syncErrors;
+
+	/**
+	 * Creates a decoder that hands every complete and CRC-checked reply package to
+	 * the given consumer. The consumer receives its own copy of the package.
+	 *
+	 * @param replyConsumer        receiver of decoded reply packages
+	 * @param corruptReplyConsumer receiver of reply packages that failed their CRC
+	 *                             check; the package is only valid during the call
+	 */
+	ReplyDecoder(Consumer<byte[]> replyConsumer, Consumer<byte[]> corruptReplyConsumer) {
+		this.replyConsumer = replyConsumer;
+		this.corruptReplyConsumer = corruptReplyConsumer;
+	}
+
+	/**
+	 * Appends bytes read from the serial port and delivers every reply package
+	 * that is complete afterwards. If the ring buffer overflows, the oldest bytes
+	 * are discarded.
+	 *
+	 * @param data bytes read from the serial port
+	 * @param off  index of the first new byte
+	 * @param len  number of new bytes
+	 */
+	synchronized void feed(byte[] data, int off, int len) {
+		receivedBytes += len;
+		for (int i = 0; i < len; i++) {
+			if (writeIndex - readIndex == RING_SIZE) {
+				readIndex++;
+				discardedBytes++;
+			}
+			ring[writeIndex++ & RING_MASK] = data[off + i];
+		}
+		decode();
+	}
+
+	/**
+	 * Discards all bytes that have not been decoded yet, e.g. when the serial port
+	 * is closed.
+	 */
+	synchronized void reset() {
+		readIndex = writeIndex;
+	}
+
+	synchronized long getDiscardedBytes() {
+		return discardedBytes;
+	}
+
+	synchronized long getDroppedEchoes() {
+		return droppedEchoes;
+	}
+
+	synchronized long getDeliveredReplies() {
+		return deliveredReplies;
+	}
+
+	synchronized long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * @return number of datagrams that started with the sync byte but failed
+	 *         their CRC check
+	 */
+	synchronized long getCrcFailures() {
+		return crcFailures;
+	}
+
+	/**
+	 * @return number of bytes skipped because they were not the sync byte at the
+	 *         start of a datagram
+	 */
+	synchronized long getSyncErrors() {
+		return syncErrors;
+	}
+
+	private void decode() {
+		while (available() >= 2) {
+			if (peek(0) != DatagramEncoder.SYNC_BYTE) {
+				syncErrors++;
+				discard();
+				continue;
+			}
+
+			int length;
+			boolean reply = peek(1) == DatagramEncoder.MASTER_ADDRESS;
+			if (reply) {
+				length = DatagramEncoder.REPLY_LENGTH;
+			} else if (available() < 3) {
+				return;
+			} else if ((peek(2) & 0x80) != 0) {
+				length = DatagramEncoder.WRITE_ACCESS_LENGTH; // echo of our write access
+			} else {
+				length = DatagramEncoder.READ_ACCESS_LENGTH; // echo of our read request
+			}
+
+			if (available() < length) {
+				return; // wait for the rest of the datagram
+			}
+
+			if (!crcMatches(length)) {
+				crcFailures++;
+				if (reply) {
+					corruptReplyConsumer.accept(candidate);
+				}
+				discard(); // false sync or corrupt datagram: resync on the next byte
+				continue;
+			}
+
+			if (reply) {
+				byte[] replyPackage = new byte[DatagramEncoder.REPLY_LENGTH];
+				System.arraycopy(candidate, 0, replyPackage, 0, replyPackage.length);
+				readIndex += length;
+				deliveredReplies++;
+				replyConsumer.accept(replyPackage);
+			} else {
+				readIndex += length;
+				droppedEchoes++;
+			}
+		}
+	}
+
+	private boolean crcMatches(int length) {
+		for (int i = 0; i < length; i++) {
+			candidate[i] = peek(i);
+		}
+		return CRCgenerator.crc(candidate, 0, length - 1) == candidate[length - 1];
+	}
+
+	private int available() {
+		return writeIndex - readIndex;
+	}
+
+	private byte peek(int offset) {
+		return ring[(readIndex + offset) & RING_MASK];
+	}
+
+	private void discard() {
+		readIndex++;
+		discardedBytes++;
+	}
+}
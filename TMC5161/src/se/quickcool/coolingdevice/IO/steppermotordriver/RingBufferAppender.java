@@ -0,0 +1,190 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An appender that never blocks the thread that logs. Messages are copied into
+ * a ring of preallocated slots and handed to another appender, e.g. a
+ * {@link ConsoleAppender}, by a background thread of its own. Datagram bytes are
+ * copied as they are and only formatted on the background thread.
+ * <p>
+ * Any number of threads may log at the same time; a slot is claimed with a
+ * single compare-and-set and no lock is taken. If the ring is full, because the
+ * background thread cannot keep up, the message is dropped and counted rather
+ * than making the caller wait.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class RingBufferAppender implements LogAppender {
+	/**
+	 * Datagram bytes kept per message. Longer datagrams are cut off.
+	 */
+	public static final int MAX_FRAME_LENGTH = 16;
+
+	private static final long FLUSH_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final LogAppender target;
+	private final int mask;
+	/*
+	 * Slot i is free for the message with sequence number s when sequences[i] == s
+	 * and holds that message, ready to be taken, when sequences[i] == s + 1. The
+	 * slot contents are published by the volatile write of the sequence.
+	 */
+	private final AtomicLongArray sequences;
+	private final long[] times;
+	private final LogLevel[] levels;
+	private final String[] messages;
+	private final byte[] frames;
+	private final int[] frameLengths; // -1 if the message has no datagram
+
+	private final AtomicLong tail = new AtomicLong(); // next sequence number to claim
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long head; // next sequence number to hand on, only written by the drain thread
+	private volatile boolean closed;
+	private volatile boolean drainParked; // set while the drain thread waits for messages
+	private final Thread drainThread;
+
+	/**
+	 * Creates the ring and starts its background thread.
+	 *
+	 * @param target   appender that the messages are handed to
+	 * @param capacity number of messages the ring holds, rounded up to a power of
+	 *                 two and at least 2
+	 */
+	public RingBufferAppender(LogAppender target, int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		// a single slot would look free for the next message while it still holds
+		// the current one, since both are marked by the same sequence number
+		int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+		this.target = target;
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size);
+		this.times = new long[size];
+		this.levels = new LogLevel[size];
+		this.messages = new String[size];
+		this.frames = new byte[size * MAX_FRAME_LENGTH];
+		this.frameLengths = new int[size];
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		drainThread = new Thread(this::drain, "TMC5161 log");
+		drainThread.setDaemon(true);
+		drainThread.start();
+	}
+
+	@Override
+	public void append(long timeMillis, LogLevel level, String message, byte[] frame, int off, int len) {
+		if (closed) {
+			dropped.incrementAndGet();
+			return;
+		}
+		long sequence = tail.get();
+		int slot;
+		while (true) {
+			slot = (int) sequence & mask;
+			long difference = sequences.get(slot) - sequence;
+			if (difference == 0) {
+				if (tail.compareAndSet(sequence, sequence + 1)) {
+					break;
+				}
+				sequence = tail.get();
+			} else if (difference < 0) {
+				dropped.incrementAndGet(); // the ring is full
+				return;
+			} else {
+				sequence = tail.get(); // another thread claimed the slot
+			}
+		}
+		times[slot] = timeMillis;
+		levels[slot] = level;
+		messages[slot] = message;
+		if (frame == null) {
+			frameLengths[slot] = -1;
+		} else {
+			int length = Math.min(len, MAX_FRAME_LENGTH);
+			System.arraycopy(frame, off, frames, slot * MAX_FRAME_LENGTH, length);
+			frameLengths[slot] = length;
+		}
+		sequences.set(slot, sequence + 1); // publish
+		if (drainParked) {
+			LockSupport.unpark(drainThread);
+		}
+	}
+
+	/**
+	 * @return number of messages dropped because the ring was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Waits until every message logged so far has been handed on.
+	 *
+	 * @param timeoutMillis maximum waiting time
+	 * @return true if all messages have been handed on
+	 */
+	public boolean flush(long timeoutMillis) {
+		long until = tail.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (head < until) {
+			if (System.nanoTime() - deadline > 0) {
+				return false;
+			}
+			LockSupport.unpark(drainThread);
+			LockSupport.parkNanos(FLUSH_PARK_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Hands on the messages that are still in the ring and stops the background
+	 * thread. Messages logged afterwards are dropped.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(drainThread);
+		try {
+			drainThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		long sequence = head;
+		while (true) {
+			int slot = (int) sequence & mask;
+			if (sequences.get(slot) != sequence + 1) {
+				if (closed) {
+					return;
+				}
+				// checked again after the flag is set, so that a message published in
+				// between either is seen here or unparks the thread
+				drainParked = true;
+				if (sequences.get(slot) != sequence + 1 && !closed) {
+					LockSupport.park(this);
+				}
+				drainParked = false;
+				continue;
+			}
+			int length = frameLengths[slot];
+			try {
+				target.append(times[slot], levels[slot], messages[slot], length < 0 ? null : frames,
+						slot * MAX_FRAME_LENGTH, Math.max(length, 0));
+			} catch (RuntimeException e) {
+				dropped.incrementAndGet();
+			}
+			messages[slot] = null;
+			sequences.set(slot, sequence + mask + 1); // free the slot for the next round
+			head = ++sequence;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Arrays;
+
+/**
+ * This class holds the settings of the serial port of a bus: port name, baud
+ * rate and stop bits, and whether the baud rate is to be tuned automatically
+ * when the bus is opened.
+ * <p>
+ * The UART interface of the TMC5161 detects the baud rate by itself from the
+ * sync nibble of every datagram, so the baud rate is only a matter of what the
+ * serial adapter and the wiring can take. With auto-tuning enabled, the bus
+ * starts at the configured baud rate and then steps up through the candidate
+ * rates as long as CRC-checked reads of IFCNT and GCONF keep succeeding. It
+ * settles on the fastest rate that passed. Since the status polls of all motors
+ * share the bus, their capacity grows in proportion to the baud rate.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class SerialSettings {
+	public static final int DEFAULT_BAUD_RATE = 115200;
+
+	private final String portName;
+	private int baudRate = DEFAULT_BAUD_RATE;
+	private int stopBits = 1;
+	private boolean autoTune;
+	private int autoTuneSlaveAddress;
+	private int[] autoTuneBaudRates = { 230400, 460800, 500000, 750000 };
+	private int verificationReads = 20;
+
+	/**
+	 * Creates settings for the first serial port of this computer.
+	 */
+	public SerialSettings() {
+		this(null);
+	}
+
+	/**
+	 * @param portName system name of the serial port, e.g. "ttyS1" or "COM3", or
+	 *                 null for the first port
+	 */
+	public SerialSettings(String portName) {
+		this.portName = portName;
+	}
+
+	/**
+	 * @param baudRate baud rate that the port is opened with, and the starting
+	 *                 point of auto-tuning
+	 */
+	public void setBaudRate(int baudRate) {
+		if (baudRate <= 0) {
+			throw new IllegalArgumentException("Invalid baud rate: " + baudRate);
+		}
+		this.baudRate = baudRate;
+	}
+
+	/**
+	 * @param stopBits number of stop bits, 1 or 2
+	 */
+	public void setStopBits(int stopBits) {
+		if (stopBits != 1 && stopBits != 2) {
+			throw new IllegalArgumentException("Invalid number of stop bits: " + stopBits);
+		}
+		this.stopBits = stopBits;
+	}
+
+	/**
+	 * Enables auto-tuning of the baud rate when the bus is opened. The link is
+	 * verified against the driver with the given slave address, which therefore
+	 * has to answer at that address when the bus is opened.
+	 *
+	 * @param autoTune     true to tune the baud rate
+	 * @param slaveAddress slave address of the driver the link is verified with
+	 */
+	public void setAutoTune(boolean autoTune, int slaveAddress) {
+		if (slaveAddress < 0 || slaveAddress > StepperMotorBus.MAX_SLAVE_ADDRESS) {
+			throw new IllegalArgumentException("Invalid slave address: " + slaveAddress);
+		}
+		this.autoTune = autoTune;
+		this.autoTuneSlaveAddress = slaveAddress;
+	}
+
+	/**
+	 * Sets the baud rates that auto-tuning tries. Rates that are not above the
+	 * configured baud rate are skipped.
+	 *
+	 * @param baudRates candidate baud rates
+	 */
+	public void setAutoTuneBaudRates(int... baudRates) {
+		int[] sorted = baudRates.clone();
+		Arrays.sort(sorted);
+		if (sorted.length > 0 && sorted[0] <= 0) {
+			throw new IllegalArgumentException("Invalid baud rate: " + sorted[0]);
+		}
+		this.autoTuneBaudRates = sorted;
+	}
+
+	/**
+	 * @param reads number of IFCNT and GCONF read pairs that must all succeed
+	 *              for a baud rate to count as reliable
+	 */
+	public void setVerificationReads(int reads) {
+		if (reads < 1) {
+			throw new IllegalArgumentException("At least one verification read is needed");
+		}
+		this.verificationReads = reads;
+	}
+
+	public String getPortName() {
+		return portName;
+	}
+
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	public int getStopBits() {
+		return stopBits;
+	}
+
+	public boolean isAutoTune() {
+		return autoTune;
+	}
+
+	public int getAutoTuneSlaveAddress() {
+		return autoTuneSlaveAddress;
+	}
+
+	/**
+	 * @return candidate baud rates of auto-tuning, in ascending order
+	 */
+	public int[] getAutoTuneBaudRates() {
+		return autoTuneBaudRates.clone();
+	}
+
+	public int getVerificationReads() {
+		return verificationReads;
+	}
+}
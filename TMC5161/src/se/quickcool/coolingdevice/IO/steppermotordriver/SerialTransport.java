@@ -0,0 +1,112 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * The physical link between a {@link StepperMotorBus} and the TMC5161 drivers
+ * on it. The bus hands complete, encoded datagrams to the transport and receives
+ * the raw bytes that come back, which it reassembles into reply packages
+ * itself. The transport therefore knows nothing about the datagram structure.
+ * <p>
+ * {@link UARTSerialComm} is the transport for a real serial port.
+ * {@link TMC5161Emulator} is an in-memory transport that answers like a chain
+ * of TMC5161 drivers, so the whole stack can be run without hardware.
+ * </p>
+ * <p>
+ * <b>Note:</b> The send functions are only invoked by the I/O thread of the bus,
+ * one at a time. They return once the datagrams have been sent.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public interface SerialTransport {
+	/**
+	 * Receives the bytes that arrive from the TMC, in the order they arrive. The
+	 * bytes are not necessarily one complete reply package.
+	 */
+	interface ByteListener {
+		/**
+		 * @param data buffer holding the received bytes, only valid during the call
+		 * @param off  index of the first received byte
+		 * @param len  number of received bytes
+		 */
+		void bytesReceived(byte[] data, int off, int len);
+	}
+
+	/**
+	 * Opens the link. From now on every received byte is passed to the listener.
+	 *
+	 * @param listener receives the bytes from the TMC
+	 * @throws CommunicationException if the link could not be opened
+	 */
+	void open(ByteListener listener) throws CommunicationException;
+
+	/**
+	 * Opens the link like {@link #open(ByteListener)} and marks the steps it takes
+	 * in the startup timing. Transports that have no steps worth telling apart
+	 * need not override this.
+	 *
+	 * @param listener receives the bytes from the TMC
+	 * @param timing   startup timing of the bus
+	 * @throws CommunicationException if the link could not be opened
+	 */
+	default void open(ByteListener listener, StartupTiming timing) throws CommunicationException {
+		open(listener);
+		timing.mark("open transport");
+	}
+
+	/**
+	 * Closes the link.
+	 *
+	 * @return true if the link was successfully closed, false otherwise
+	 */
+	boolean close();
+
+	/**
+	 * Sends a single Write Access datagram.
+	 *
+	 * @param registerAddress The address of the register that is written to
+	 * @param datagram        the encoded datagram
+	 */
+	void writeAccess(byte registerAddress, byte[] datagram);
+
+	/**
+	 * Sends several back-to-back Write Access datagrams.
+	 *
+	 * @param buf    encoded datagrams
+	 * @param length number of bytes in buf that are to be sent
+	 */
+	void writeBatch(byte[] buf, int length);
+
+	/**
+	 * Sends a Read Access request. The reply arrives through the listener.
+	 *
+	 * @param registerAddress The address of the register that is to be read from
+	 * @param request         the encoded request
+	 */
+	void readAccess(byte registerAddress, byte[] request);
+
+	/**
+	 * Changes the baud rate of the open link. Transports without a baud rate, like
+	 * an in-memory link, do not support this.
+	 *
+	 * @param baudRate new baud rate
+	 * @return true if the link runs at the new baud rate, false otherwise
+	 */
+	default boolean setBaudRate(int baudRate) {
+		return false;
+	}
+
+	/**
+	 * @return current baud rate of the link, or 0 if the link has no baud rate
+	 */
+	default int getBaudRate() {
+		return 0;
+	}
+
+	/**
+	 * Returns a name for the link, used in thread names and messages.
+	 *
+	 * @return name of the link
+	 */
+	String getName();
+}
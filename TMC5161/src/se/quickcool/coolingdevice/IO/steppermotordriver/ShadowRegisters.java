@@ -0,0 +1,110 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class remembers the last value written to every register of one
+ * TMC5161. Most configuration registers of the TMC5161 are write only, so this
+ * shadow copy is the only way to find out what they contain. It also allows
+ * writes to be skipped when the register already holds the value.
+ * <p>
+ * Registers that the chip updates by itself, such as XACTUAL, are never
+ * considered current, because their contents change while the motor runs. Each
+ * entry is kept in a single long together with a flag telling whether the
+ * register has been written at all and one telling whether the chip has
+ * confirmed the write, so the shadow copy can be read from any thread without
+ * locking.
+ * </p>
+ * <p>
+ * A write that has only been sent may have got lost on the way. Writes to
+ * safety relevant registers are therefore only skipped if the value has been
+ * confirmed, either through IFCNT or by reading the register back.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+class ShadowRegisters {
+	private static final long WRITTEN = 1L << 32;
+	private static final long CONFIRMED = 1L << 33;
+
+	private final AtomicLongArray entries = new AtomicLongArray(DatagramEncoder.NUMBER_OF_REGISTERS);
+
+	/**
+	 * Records a value that has been sent to a register, without confirmation that
+	 * the chip has accepted it.
+	 *
+	 * @param registerAddress register address
+	 * @param value           32-bit value written
+	 */
+	void recordWrite(byte registerAddress, int value) {
+		entries.set(registerAddress & 0x7F, WRITTEN | (value & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Records a value that the chip is known to hold, because the write was
+	 * confirmed through IFCNT or the register was read back.
+	 *
+	 * @param registerAddress register address
+	 * @param value           32-bit value held by the register
+	 */
+	void recordConfirmed(byte registerAddress, int value) {
+		entries.set(registerAddress & 0x7F, CONFIRMED | WRITTEN | (value & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * @param registerAddress register address
+	 * @return true if a value has been written to the register since the shadow
+	 *         copy was last cleared
+	 */
+	boolean isKnown(byte registerAddress) {
+		return (entries.get(registerAddress & 0x7F) & WRITTEN) != 0;
+	}
+
+	/**
+	 * Returns the last value written to a register.
+	 *
+	 * @param registerAddress register address
+	 * @return last written value, 0 if the register has not been written
+	 */
+	int get(byte registerAddress) {
+		return (int) entries.get(registerAddress & 0x7F);
+	}
+
+	/**
+	 * Tells whether writing a value to a register would change nothing.
+	 *
+	 * @param registerAddress register address
+	 * @param value           32-bit value that is about to be written
+	 * @return true if the register is known to hold the value already; for a
+	 *         safety relevant register only if the value has been confirmed
+	 */
+	boolean holds(byte registerAddress, int value) {
+		if (RegisterAccess.isUpdatedByChip(registerAddress)) {
+			return false;
+		}
+		long entry = entries.get(registerAddress & 0x7F);
+		if (RegisterAccess.isSafetyRelevant(registerAddress)) {
+			return entry == (CONFIRMED | WRITTEN | (value & 0xFFFFFFFFL));
+		}
+		return (entry & ~CONFIRMED) == (WRITTEN | (value & 0xFFFFFFFFL));
+	}
+
+	/**
+	 * Forgets the value of a single register.
+	 *
+	 * @param registerAddress register address
+	 */
+	void invalidate(byte registerAddress) {
+		entries.set(registerAddress & 0x7F, 0);
+	}
+
+	/**
+	 * Forgets all values, e.g. after the chip has been reset.
+	 */
+	void invalidateAll() {
+		for (int i = 0; i < entries.length(); i++) {
+			entries.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class records where the time goes while a bus is opened: loading the
+ * native serial library, finding the port, opening it, starting the I/O
+ * thread, publishing the metrics and tuning the baud rate. Each phase is ended
+ * by a call to {@link #mark(String)}; the report lists the phases in the order
+ * they ran.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class StartupTiming {
+	private final String name;
+	private final long startNanos;
+	private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+	private long lastMark;
+
+	/**
+	 * Starts the timing of the first phase.
+	 *
+	 * @param name name of what is started, e.g. the serial port
+	 */
+	StartupTiming(String name) {
+		this.name = name;
+		this.startNanos = System.nanoTime();
+		this.lastMark = startNanos;
+	}
+
+	/**
+	 * Ends the current phase and starts the next one.
+	 *
+	 * @param phase name of the phase that has just ended
+	 */
+	synchronized void mark(String phase) {
+		long now = System.nanoTime();
+		phaseNanos.merge(phase, now - lastMark, Long::sum);
+		lastMark = now;
+	}
+
+	/**
+	 * @return duration of every phase in nanoseconds, in the order the phases ran
+	 */
+	public synchronized Map<String, Long> getPhaseNanos() {
+		return Collections.unmodifiableMap(new LinkedHashMap<>(phaseNanos));
+	}
+
+	/**
+	 * @return time from the start until the last phase ended, in nanoseconds
+	 */
+	public synchronized long getTotalNanos() {
+		return lastMark - startNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder report = new StringBuilder("Startup of ").append(name).append(':');
+		for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+			report.append(' ').append(phase.getKey()).append(' ').append(millis(phase.getValue())).append(" ms,");
+		}
+		return report.append(" total ").append(millis(lastMark - startNanos)).append(" ms").toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.1f", (double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
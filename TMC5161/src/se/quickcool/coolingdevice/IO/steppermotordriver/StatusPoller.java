@@ -0,0 +1,137 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class decides which status registers of one motor are due to be read,
+ * following a {@link StatusPollingPolicy}. It is owned by the supervision
+ * thread of the motor and is not thread safe.
+ * <p>
+ * The time until the next read of a register is derived from the state found
+ * by the latest reads, so a change of state takes effect at once: when a stall
+ * comes near, a DRV_STATUS read that was scheduled far ahead is brought forward
+ * to the escalated rate.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class StatusPoller {
+	static final int VELOCITY = 1, DRIVER_STATUS = 2;
+
+	private static final int SG_RESULT = 0x3FF;
+
+	private final long rampingVelocityPeriod, steadyVelocityPeriod;
+	private final long driverStatusPeriod, escalatedDriverStatusPeriod;
+	private final int stallGuardMargin;
+	private final double steadyVelocityTolerance;
+
+	private boolean started;
+	private long lastVelocityRead, lastDriverStatusRead;
+	private boolean velocityKnown, ramping = true, escalated;
+	private int previousVelocity;
+
+	/**
+	 * @param policy polling rates, copied so that later changes to the policy do
+	 *               not affect this poller
+	 */
+	StatusPoller(StatusPollingPolicy policy) {
+		this.rampingVelocityPeriod = TimeUnit.MILLISECONDS.toNanos(policy.getRampingVelocityPeriodMillis());
+		this.steadyVelocityPeriod = TimeUnit.MILLISECONDS.toNanos(policy.getSteadyVelocityPeriodMillis());
+		this.driverStatusPeriod = TimeUnit.MILLISECONDS.toNanos(policy.getDriverStatusPeriodMillis());
+		this.escalatedDriverStatusPeriod = TimeUnit.MILLISECONDS
+				.toNanos(policy.getEscalatedDriverStatusPeriodMillis());
+		this.stallGuardMargin = policy.getStallGuardMargin();
+		this.steadyVelocityTolerance = policy.getSteadyVelocityTolerance();
+	}
+
+	/**
+	 * @param now current value of System.nanoTime()
+	 * @return the registers that are due, a combination of {@link #VELOCITY} and
+	 *         {@link #DRIVER_STATUS}
+	 */
+	int due(long now) {
+		if (!started) {
+			return VELOCITY | DRIVER_STATUS;
+		}
+		int due = 0;
+		if (now - nextVelocityRead() >= 0) {
+			due |= VELOCITY;
+		}
+		if (now - nextDriverStatusRead() >= 0) {
+			due |= DRIVER_STATUS;
+		}
+		return due;
+	}
+
+	/**
+	 * @return System.nanoTime() at which the next register is due
+	 */
+	long nextDue() {
+		long velocity = nextVelocityRead();
+		long driverStatus = nextDriverStatusRead();
+		return velocity - driverStatus < 0 ? velocity : driverStatus;
+	}
+
+	/**
+	 * Takes note of registers that have been read and of the state they show.
+	 *
+	 * @param registers the registers that were read
+	 * @param status    packed motor status after the read
+	 * @param now       System.nanoTime() of the read
+	 */
+	void polled(int registers, long status, long now) {
+		if ((registers & VELOCITY) != 0) {
+			int velocity = MotorStatus.actualVelocity(status);
+			double change = Math.abs((double) velocity - previousVelocity);
+			ramping = !velocityKnown
+					|| change > steadyVelocityTolerance * Math.max(Math.abs(velocity), Math.abs(previousVelocity));
+			previousVelocity = velocity;
+			velocityKnown = true;
+		}
+		if ((registers & DRIVER_STATUS) != 0) {
+			boolean moving = !MotorStatus.Flag.STANDSTILL.isSet(status);
+			escalated = MotorStatus.Flag.STALLGUARD.isSet(status)
+					|| moving && (MotorStatus.driverStatus(status) & SG_RESULT) <= stallGuardMargin;
+		}
+		skipped(registers, now);
+	}
+
+	/**
+	 * Takes note of registers that were due but could not be read. They are tried
+	 * again after their current period, not at once, so a bus that is down is not
+	 * flooded with requests.
+	 *
+	 * @param registers the registers that were due
+	 * @param now       System.nanoTime() of the attempt
+	 */
+	void skipped(int registers, long now) {
+		if (!started) {
+			started = true;
+			lastVelocityRead = now;
+			lastDriverStatusRead = now;
+		}
+		if ((registers & VELOCITY) != 0) {
+			lastVelocityRead = now;
+		}
+		if ((registers & DRIVER_STATUS) != 0) {
+			lastDriverStatusRead = now;
+		}
+	}
+
+	boolean isRamping() {
+		return ramping;
+	}
+
+	boolean isEscalated() {
+		return escalated;
+	}
+
+	private long nextVelocityRead() {
+		return lastVelocityRead + (ramping ? rampingVelocityPeriod : steadyVelocityPeriod);
+	}
+
+	private long nextDriverStatusRead() {
+		return lastDriverStatusRead + (escalated ? escalatedDriverStatusPeriod : driverStatusPeriod);
+	}
+}
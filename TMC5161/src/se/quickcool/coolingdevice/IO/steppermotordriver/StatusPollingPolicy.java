@@ -0,0 +1,123 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class holds the polling rates that a {@link MotorSupervisor} uses when a
+ * motor is supervised adaptively. Instead of reading every status register at
+ * one fixed rate, VACTUAL and DRV_STATUS are read at rates of their own which
+ * follow the state of the motor:
+ * <ul>
+ * <li>VACTUAL is read fast while the motor is ramping, i.e. while its velocity
+ * still changes between two reads, and slowly once it runs at steady
+ * speed.</li>
+ * <li>DRV_STATUS is read at its normal rate, and fast while the stallGuard2
+ * load value of a moving motor is within a margin of a stall or the stallGuard
+ * flag is set.</li>
+ * </ul>
+ * The bus bandwidth thereby goes where it matters, so more motors fit on a bus
+ * without a fault being found later than with a fixed rate.
+ * <p>
+ * The defaults suit a motor that is started, ramps up for a second or so and
+ * then runs at a constant speed. All periods are in milliseconds.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class StatusPollingPolicy {
+	private long rampingVelocityPeriodMillis = 10;
+	private long steadyVelocityPeriodMillis = 250;
+	private long driverStatusPeriodMillis = 100;
+	private long escalatedDriverStatusPeriodMillis = 10;
+	private int stallGuardMargin = 100;
+	private double steadyVelocityTolerance = 0.01;
+
+	/**
+	 * @param millis time between two VACTUAL reads while the motor is ramping
+	 */
+	public void setRampingVelocityPeriodMillis(long millis) {
+		this.rampingVelocityPeriodMillis = checkPeriod(millis);
+	}
+
+	/**
+	 * @param millis time between two VACTUAL reads while the motor runs at steady
+	 *               speed or stands still
+	 */
+	public void setSteadyVelocityPeriodMillis(long millis) {
+		this.steadyVelocityPeriodMillis = checkPeriod(millis);
+	}
+
+	/**
+	 * Sets the normal rate of the DRV_STATUS reads. The position counter of the
+	 * motor is reset at the same rate.
+	 *
+	 * @param millis time between two DRV_STATUS reads
+	 */
+	public void setDriverStatusPeriodMillis(long millis) {
+		this.driverStatusPeriodMillis = checkPeriod(millis);
+	}
+
+	/**
+	 * @param millis time between two DRV_STATUS reads while a stall is near
+	 */
+	public void setEscalatedDriverStatusPeriodMillis(long millis) {
+		this.escalatedDriverStatusPeriodMillis = checkPeriod(millis);
+	}
+
+	/**
+	 * Sets how close to a stall the motor may come before DRV_STATUS is read
+	 * fast. The stallGuard2 result SG_RESULT falls towards 0 as the motor load
+	 * rises and a stall is detected at 0.
+	 *
+	 * @param margin SG_RESULT at or below which polling is escalated, 0 to 1023
+	 */
+	public void setStallGuardMargin(int margin) {
+		if (margin < 0 || margin > 1023) {
+			throw new IllegalArgumentException("Invalid stallGuard margin: " + margin);
+		}
+		this.stallGuardMargin = margin;
+	}
+
+	/**
+	 * Sets how much the velocity may change between two reads for the motor to
+	 * count as running at steady speed.
+	 *
+	 * @param tolerance largest relative change, e.g. 0.01 for 1 %
+	 */
+	public void setSteadyVelocityTolerance(double tolerance) {
+		if (!(tolerance >= 0)) {
+			throw new IllegalArgumentException("Invalid velocity tolerance: " + tolerance);
+		}
+		this.steadyVelocityTolerance = tolerance;
+	}
+
+	public long getRampingVelocityPeriodMillis() {
+		return rampingVelocityPeriodMillis;
+	}
+
+	public long getSteadyVelocityPeriodMillis() {
+		return steadyVelocityPeriodMillis;
+	}
+
+	public long getDriverStatusPeriodMillis() {
+		return driverStatusPeriodMillis;
+	}
+
+	public long getEscalatedDriverStatusPeriodMillis() {
+		return escalatedDriverStatusPeriodMillis;
+	}
+
+	public int getStallGuardMargin() {
+		return stallGuardMargin;
+	}
+
+	public double getSteadyVelocityTolerance() {
+		return steadyVelocityTolerance;
+	}
+
+	private static long checkPeriod(long millis) {
+		if (millis <= 0) {
+			throw new IllegalArgumentException("Polling period must be positive");
+		}
+		return millis;
+	}
+}
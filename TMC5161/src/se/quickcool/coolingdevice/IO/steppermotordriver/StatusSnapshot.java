@@ -0,0 +1,110 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class is an immutable snapshot of the status registers VACTUAL,
+ * DRV_STATUS, XACTUAL and RAMP_STAT of one motor driver, read in one pipelined
+ * burst. The four Read Access requests are queued together, so no other traffic
+ * on the bus comes in between, and the registers differ in age by no more than
+ * the acquisition time.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class StatusSnapshot {
+	private static final int VELOCITY_REACHED = 1 << 8, POSITION_REACHED = 1 << 9, VZERO = 1 << 10; // RAMP_STAT
+
+	private final MotorStatus motorStatus;
+	private final int actualPosition;
+	private final int rampStatus;
+	private final long timestampMillis;
+	private final long acquisitionNanos;
+
+	/**
+	 * @param motorStatus      contents of VACTUAL and DRV_STATUS
+	 * @param actualPosition   contents of XACTUAL
+	 * @param rampStatus       contents of RAMP_STAT
+	 * @param timestampMillis  wall clock time at which the last reply arrived
+	 * @param acquisitionNanos time from queuing the first request until the last
+	 *                         reply arrived
+	 */
+	StatusSnapshot(MotorStatus motorStatus, int actualPosition, int rampStatus, long timestampMillis,
+			long acquisitionNanos) {
+		this.motorStatus = motorStatus;
+		this.actualPosition = actualPosition;
+		this.rampStatus = rampStatus;
+		this.timestampMillis = timestampMillis;
+		this.acquisitionNanos = acquisitionNanos;
+	}
+
+	/**
+	 * @return velocity and driver status flags
+	 */
+	public MotorStatus getMotorStatus() {
+		return motorStatus;
+	}
+
+	/**
+	 * @return actual motor position in microsteps
+	 */
+	public int getActualPosition() {
+		return actualPosition;
+	}
+
+	/**
+	 * @return contents of the RAMP_STAT register
+	 */
+	public int getRampStatus() {
+		return rampStatus;
+	}
+
+	/**
+	 * @return true if the ramp generator has reached its target velocity
+	 */
+	public boolean isVelocityReached() {
+		return (rampStatus & VELOCITY_REACHED) != 0;
+	}
+
+	/**
+	 * @return true if XACTUAL has reached XTARGET
+	 */
+	public boolean isPositionReached() {
+		return positionReached(rampStatus);
+	}
+
+	/**
+	 * @param rampStatus contents of the RAMP_STAT register
+	 * @return true if the position_reached flag is set
+	 */
+	static boolean positionReached(int rampStatus) {
+		return (rampStatus & POSITION_REACHED) != 0;
+	}
+
+	/**
+	 * @return true if the ramp generator velocity is zero
+	 */
+	public boolean isVelocityZero() {
+		return (rampStatus & VZERO) != 0;
+	}
+
+	/**
+	 * @return wall clock time in milliseconds at which the snapshot was completed
+	 */
+	public long getTimestampMillis() {
+		return timestampMillis;
+	}
+
+	/**
+	 * @return time in nanoseconds that it took to read all four registers
+	 */
+	public long getAcquisitionNanos() {
+		return acquisitionNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "StatusSnapshot[velocity=" + motorStatus.getActualVelocity() + ", DRV_STATUS=0x"
+				+ Integer.toHexString(motorStatus.getDriverStatus()).toUpperCase() + ", XACTUAL=" + actualPosition
+				+ ", RAMP_STAT=0x" + Integer.toHexString(rampStatus).toUpperCase() + ", time=" + timestampMillis
+				+ "]";
+	}
+}
@@ -1,5 +1,13 @@
 package se.quickcool.coolingdevice.IO.steppermotordriver;
 
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class allows other user programs to interact with the Stepper motor.
  * Interaction could mean setting velocity, checking its condition and operation
@@ -11,6 +19,9 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
  */
 public class StepperMotor {
 	private StepperMotorControl smc;
+	private TrajectoryQueue trajectory; // created on first use
+	private final List<MotorFaultListener> faultListeners = new CopyOnWriteArrayList<>();
+	private final AtomicInteger activeFaults = new AtomicInteger(); // one bit per MotorFault
 
 	// Shared list of status parameters
 	public static final int ACTUAL_VELOCITY_STATUS = 0, STALLGUARD_STATUS = 1, OVERTEMPERATURE_PREWARNING_STATUS = 2,
@@ -27,6 +38,16 @@ public class StepperMotor {
 		this.smc = new StepperMotorControl();
 	}
 
+	/**
+	 * Creates a handle for one of several motor drivers on a shared bus.
+	 * 
+	 * @param smc control object of the motor driver
+	 * @see StepperMotorBus#getMotor(int)
+	 */
+	StepperMotor(StepperMotorControl smc) {
+		this.smc = smc;
+	}
+
 	/**
 	 * Initializes and starts the stepper motor with the input parameter as initial
 	 * RPS speed.
@@ -40,13 +61,56 @@ public class StepperMotor {
 	 */
 	public void startStepperMotor(double rps) throws CommunicationException, DriverErrorException {
 		smc.initStepperMotor(rps);
-		smc.rotateToTargetPosition(0x00099000); // starts stepper motor
+		smc.rotateToTargetPosition(StepperMotorControl.CONTINUOUS_ROTATION_TARGET); // starts stepper motor
+	}
+
+	/**
+	 * Initializes the stepper motor like {@link #startStepperMotor(double)} but
+	 * leaves it standing at position 0, e.g. to run a trajectory afterwards.
+	 * 
+	 * @param rps Velocity of the motor given in <em>Rotations per Second</em>
+	 *            (RPS) until a trajectory sets another
+	 * @throws CommunicationException
+	 * @throws DriverErrorException
+	 * @see #getTrajectoryQueue()
+	 */
+	public void configureStepperMotor(double rps) throws CommunicationException, DriverErrorException {
+		smc.initStepperMotor(rps);
+	}
+
+	/**
+	 * Returns the trajectory queue of this motor, which runs a sequence of moves
+	 * back-to-back.
+	 * 
+	 * @return trajectory queue of the motor
+	 */
+	public synchronized TrajectoryQueue getTrajectoryQueue() {
+		if (trajectory == null) {
+			trajectory = new TrajectoryQueue(smc);
+		}
+		return trajectory;
+	}
+
+	/**
+	 * Resets the position counter unless the motor follows a trajectory, which
+	 * needs it. The check and the reset are atomic with respect to segments added
+	 * to the trajectory queue.
+	 * 
+	 * @return true if the position counter has been reset
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
+	 */
+	boolean resetPositionCounterUnlessFollowingTrajectory() throws CommunicationException {
+		return getTrajectoryQueue().resetPositionCounterIfIdle();
 	}
 
 	/**
 	 * Resets the position counter, i.e. sets XTARGET to zero.
+	 * 
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
 	 */
-	public void resetPositionCounter() {
+	public void resetPositionCounter() throws CommunicationException {
 		smc.resetPositionCounter();
 	}
 
@@ -57,29 +121,205 @@ public class StepperMotor {
 	 * <b>Note:</b> Exceptions are caught but not handled. User must handle the
 	 * exceptions and make the decision based on them.
 	 * </p>
+	 * <p>
+	 * The status registers VACTUAL, DRV_STATUS, XACTUAL and RAMP_STAT are read
+	 * in one pipelined burst, see {@link #getStatusSnapshot()}.
+	 * </p>
+	 * <p>
+	 * Only the first fault is thrown. Registered fault listeners are told about
+	 * all faults that have been raised or cleared before the exception is thrown,
+	 * see {@link #updateMotorStatus()}.
+	 * </p>
 	 * 
-	 * @param status status which is inquired such as current motor velocity
 	 * @throws DataCorruptException
 	 * @throws DriverErrorException
 	 */
 	public void checkMotorStatus() throws CommunicationException, DataCorruptException, DriverErrorException {
-		smc.checkMotorStatus();
+		checkMotorStatus(true, true);
 	}
 
 	/**
-	 * Resets the motor by power cycling VCC_IO. This completely resets the chip.
-	 * This function is to be used as a way to get out of exceptions.
+	 * Checks a part of the status registers like {@link #checkMotorStatus()}. The
+	 * part that is not read is taken from the previous check, but only the faults
+	 * of the registers read now are thrown and reported to the fault listeners.
 	 * 
-	 * @throws DriverErrorException
+	 * @param readVelocity     true to read the VACTUAL register
+	 * @param readDriverStatus true to read the DRV_STATUS register
+	 * @see MotorSupervisor#supervise(StepperMotor, StatusPollingPolicy, double,
+	 *      MotorSupervisor.FaultHandler, MotorSupervisor.ResetPolicy)
+	 */
+	void checkMotorStatus(boolean readVelocity, boolean readDriverStatus)
+			throws CommunicationException, DataCorruptException, DriverErrorException {
+		long status = smc.updateMotorStatus(readVelocity, readDriverStatus);
+		int read = StepperMotorControl.faultsReadBy(readVelocity, readDriverStatus);
+		int faults = smc.activeFaults(status) & read;
+		fireFaultEvents(status, faults | activeFaults.get() & ~read);
+		smc.reportMotorStatus(status, faults);
+	}
+
+	/**
+	 * Checks the status registers of the driver board like
+	 * {@link #checkMotorStatus()}, but reports faults only to the registered
+	 * fault listeners instead of throwing them. Every fault that has appeared
+	 * since the previous status check is reported as raised and every fault that
+	 * has disappeared as cleared. Nothing is printed.
+	 * 
+	 * @return the motor status that was read
 	 * @throws CommunicationException
+	 * @throws DataCorruptException
+	 */
+	public MotorStatus updateMotorStatus() throws CommunicationException, DataCorruptException {
+		long status = smc.updateMotorStatus();
+		fireFaultEvents(status, smc.activeFaults(status));
+		return new MotorStatus(status);
+	}
+
+	/**
+	 * Registers a listener that is told whenever a status check finds that a fault
+	 * has been raised or cleared.
 	 * 
+	 * @param listener fault listener
 	 */
-	public void resetMotor(double rps) {
+	public void addFaultListener(MotorFaultListener listener) {
+		faultListeners.add(listener);
+	}
+
+	/**
+	 * @param listener fault listener that is no longer to be told about faults
+	 */
+	public void removeFaultListener(MotorFaultListener listener) {
+		faultListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the faults found by the latest status check.
+	 * 
+	 * @return the active faults
+	 */
+	public Set<MotorFault> getActiveFaults() {
+		int faults = activeFaults.get();
+		Set<MotorFault> active = EnumSet.noneOf(MotorFault.class);
+		for (MotorFault fault : MotorFault.values()) {
+			if (fault.isIn(faults)) {
+				active.add(fault);
+			}
+		}
+		return active;
+	}
+
+	private void fireFaultEvents(long status, int faults) {
+		int changed = activeFaults.getAndSet(faults) ^ faults;
+		if (changed == 0 || faultListeners.isEmpty()) {
+			return;
+		}
+		MotorStatus snapshot = new MotorStatus(status);
+		long now = System.currentTimeMillis();
+		for (MotorFault fault : MotorFault.values()) {
+			if (!fault.isIn(changed)) {
+				continue;
+			}
+			MotorFaultEvent event = new MotorFaultEvent(this, fault, fault.isIn(faults), snapshot, now);
+			for (MotorFaultListener listener : faultListeners) {
+				try {
+					listener.faultChanged(event);
+				} catch (RuntimeException e) {
+					// one faulty listener must not silence the others
+					DriverLog.error("Fault listener failed on " + event, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the motor status found by the latest call to
+	 * {@link #checkMotorStatus()}, e.g. by a {@link MotorSupervisor}. The status
+	 * is an immutable snapshot, so any number of threads may call this function
+	 * without disturbing the communication with the TMC.
+	 *
+	 * @return latest motor status, or {@link MotorStatus#UNKNOWN} if the status
+	 *         has not been checked yet
+	 */
+	public MotorStatus getMotorStatus() {
+		return smc.getMotorStatus();
+	}
+
+	/**
+	 * Returns the status snapshot read by the latest full status check. Besides
+	 * the motor status it holds the actual position and the ramp status, all read
+	 * in one pipelined burst.
+	 *
+	 * @return latest status snapshot, or null if the status has not been checked
+	 *         yet
+	 */
+	public StatusSnapshot getStatusSnapshot() {
+		return smc.getStatusSnapshot();
+	}
+
+	/**
+	 * Reads a TMC5161 register without blocking. Several reads may be outstanding
+	 * at the same time; each future is completed the moment the matching reply has
+	 * arrived, or exceptionally with a CommunicationException if no reply arrives
+	 * in time.
+	 * 
+	 * @param registerAddress address of the register as listed in the TMC5161
+	 *                        datasheet
+	 * @return future completed with the 32-bit register value
+	 */
+	public CompletableFuture<Integer> readRegisterAsync(byte registerAddress) {
+		return smc.readRegisterAsync(registerAddress);
+	}
+
+	/**
+	 * Resets the motor by power cycling VCC_IO. This completely resets the chip.
+	 * This function is to be used as a way to get out of exceptions. A trajectory
+	 * that runs is cancelled, since the motor rotates continuously afterwards.
+	 * 
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                configuration could not be confirmed
+	 * 
+	 */
+	public void resetMotor(double rps) throws CommunicationException {
+		TrajectoryQueue trajectory;
+		synchronized (this) {
+			trajectory = this.trajectory;
+		}
+		if (trajectory != null) {
+			trajectory.cancel(); // the reset starts the motor rotating again
+		}
 		smc.powerCycle(); // cycles VCC_IO to completely reset the chip
+		activeFaults.set(0); // the faults went with the reset, the next check finds those that are left
 		smc.TMC5161Configuration(rps);
 		smc.resetPositionCounter(); // TODO necessary? Does chip reset also reset position counter (i.e. sets
 									// XTARGET to zero)?
-		smc.rotateToTargetPosition(0x00099000);
+		smc.rotateToTargetPosition(StepperMotorControl.CONTINUOUS_ROTATION_TARGET);
+	}
+
+	/**
+	 * Enables acknowledged writes. The motor configuration is then confirmed
+	 * through the interface transmission counter of the TMC5161 and writes that
+	 * got lost on the way are sent again. So are the writes of the target
+	 * velocity, the target position and the position counter.
+	 * 
+	 * @param acknowledgedWrites true to verify configuration writes
+	 */
+	public void enableAcknowledgedWrites(boolean acknowledgedWrites) {
+		smc.enableAcknowledgedWrites(acknowledgedWrites);
+	}
+
+	/**
+	 * Enables warm restarts. The register image of the driver is then saved to a
+	 * small file whenever the configuration changes. When the motor is started
+	 * after a restart of the program while the driver kept its power, the image
+	 * is verified with one pipelined read and only the registers that differ from
+	 * the requested configuration are written, so a running motor is neither
+	 * stopped nor ramped up again. If the driver has been reset in the meantime it
+	 * is configured from scratch as usual.
+	 * 
+	 * @param registerImageFile file holding the register image, one per motor, or
+	 *                          null to disable warm restarts
+	 */
+	public void enableWarmRestart(Path registerImageFile) {
+		smc.enableWarmRestart(registerImageFile);
 	}
 
 	/**
@@ -108,9 +348,11 @@ public class StepperMotor {
 	 * value does not violate the permissible range.
 	 * 
 	 * @param rps new target velocity
-	 * @throws DriverErrorException exception thrown if value is invalid
+	 * @throws DriverErrorException   exception thrown if value is invalid
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
 	 */
-	public void setNewTargetVelocity(double rps) throws DriverErrorException {
+	public void setNewTargetVelocity(double rps) throws DriverErrorException, CommunicationException {
 		smc.setNewTargetVelocity(rps);
 	}
 }
@@ -0,0 +1,564 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents one UART bus, i.e. one serial port with any number of
+ * TMC5161 motor drivers attached to its single wire interface. Every driver on
+ * the bus has its own slave address and is controlled through its own
+ * {@link StepperMotor} handle, which is obtained from this class.
+ * <p>
+ * The bus owns the serial port together with a dedicated I/O thread that sends
+ * every datagram of every motor on the bus and keeps track of the Read Access
+ * requests waiting for a reply. The TMC5161 always replies with the master
+ * address, so replies are routed to the right motor by the order in which the
+ * requests were sent: only one request is on the wire at a time. Buses on
+ * different serial ports share nothing and run in parallel, see
+ * {@link StepperMotorBusManager}.
+ * </p>
+ * <p>
+ * The bus is not tied to a serial port as such but to a {@link SerialTransport}.
+ * Handing it a {@link TMC5161Emulator} instead runs the whole stack, from
+ * {@link StepperMotor} down to the datagrams, without any hardware.
+ * </p>
+ * <p>
+ * <b>Note:</b> Drivers that are chained through their NAI and NAO pins all
+ * start out with the same slave address. Call
+ * {@link #assignAddresses(int, int)} once after power up to give each of them an
+ * address of its own, 2 or higher, since drivers that have not been addressed
+ * yet answer at 0 or 1.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class StepperMotorBus {
+	public static final int MAX_SLAVE_ADDRESS = 254; // 255 is the master address of the replies
+
+	private static final long REPLY_TIMEOUT_MILLIS = 100;
+	private static final byte TMC5161_SLAVECONF = 0x03; // W: slave address (bit 0-7) and SENDDELAY (bit 8-11)
+	private static final int SENDDELAY_MULTIPLE_SLAVES = 2; // 3*8 bit times, required with more than one slave
+	private static final int MAX_ADDRESS_ATTEMPTS = 3;
+
+	private final String portName;
+	private final SerialTransport transport;
+	private final SerialSettings settings;
+	private final ReplyDecoder replyDecoder = new ReplyDecoder(this::replyReceived, this::corruptReplyReceived);
+	private final BusWorker worker;
+	private final BusMetrics metrics;
+	private final MotorDriverCommunication[] slaves = new MotorDriverCommunication[MAX_SLAVE_ADDRESS + 1];
+	private final StepperMotor[] motors = new StepperMotor[MAX_SLAVE_ADDRESS + 1];
+	// guards opening, tuning, addressing and closing, which wait for the bus; a lock
+	// rather than the monitor so that virtual threads can block on it
+	private final ReentrantLock lifecycleLock = new ReentrantLock();
+	private boolean open;
+	private volatile StartupTiming startupTiming;
+
+	/**
+	 * Creates a bus on the first serial port of this computer. The port is not
+	 * opened until {@link #open()} is called or the first motor is started.
+	 */
+	public StepperMotorBus() {
+		this((String) null);
+	}
+
+	/**
+	 * Creates a bus on the serial port with the given system name, e.g. "ttyS1" or
+	 * "COM3". The port is not opened until {@link #open()} is called or the first
+	 * motor is started.
+	 *
+	 * @param portName system name of the serial port, or null for the first port
+	 */
+	public StepperMotorBus(String portName) {
+		this(new SerialSettings(portName));
+	}
+
+	/**
+	 * Creates a bus on the serial port described by the settings. The port is not
+	 * opened until {@link #open()} is called or the first motor is started.
+	 *
+	 * @param settings port name, baud rate, stop bits and auto-tuning of the port
+	 */
+	public StepperMotorBus(SerialSettings settings) {
+		this(settings.getPortName(), new UARTSerialComm(settings), settings);
+	}
+
+	/**
+	 * Creates a bus on any transport, e.g. a {@link TMC5161Emulator}. The
+	 * transport is not opened until {@link #open()} is called or the first motor
+	 * is started.
+	 *
+	 * @param transport link to the drivers
+	 */
+	public StepperMotorBus(SerialTransport transport) {
+		this(transport, new SerialSettings());
+	}
+
+	/**
+	 * Creates a bus on any transport with the auto-tuning given in the settings.
+	 * The port name, baud rate and stop bits of the settings are ignored, since the
+	 * transport has been set up already.
+	 *
+	 * @param transport link to the drivers
+	 * @param settings  auto-tuning of the baud rate
+	 */
+	public StepperMotorBus(SerialTransport transport, SerialSettings settings) {
+		this(transport.getName(), transport, settings);
+	}
+
+	private StepperMotorBus(String portName, SerialTransport transport, SerialSettings settings) {
+		this.portName = portName;
+		this.transport = transport;
+		this.settings = settings;
+		this.metrics = new BusMetrics(transport.getName(), replyDecoder, this::getPendingCount);
+		this.worker = new BusWorker(transport, metrics, REPLY_TIMEOUT_MILLIS, "TMC5161 bus " + transport.getName());
+	}
+
+	/**
+	 * Returns the system name of the serial port of this bus.
+	 *
+	 * @return port name, or null if the bus uses the first port of the computer,
+	 *         or the name of the transport the bus was created with
+	 */
+	public String getPortName() {
+		return portName;
+	}
+
+	/**
+	 * Returns the traffic statistics of the bus: bytes and datagrams on the wire,
+	 * CRC failures, timeouts and request latencies per motor and register. While
+	 * the bus is open, the same statistics are published on the platform MBean
+	 * server.
+	 *
+	 * @return statistics of the bus
+	 */
+	public BusMetricsMXBean getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Records every datagram on this bus, sent or received, including replies
+	 * that fail their CRC check and requests that time out. Several buses may
+	 * share one recorder.
+	 *
+	 * @param recorder recording to add the traffic of this bus to, or null to stop
+	 *                 recording
+	 */
+	public void setFlightRecorder(FlightRecorder recorder) {
+		FlightRecorder.Channel channel = recorder != null ? recorder.channel(transport.getName()) : null;
+		worker.setRecorder(channel);
+	}
+
+	/**
+	 * Opens the serial port of the bus and starts its I/O thread. Calling this
+	 * function on a bus that is already open has no effect. If auto-tuning is
+	 * enabled in the settings of the bus, the baud rate is tuned right away; if
+	 * that fails, the bus stays open at the configured baud rate.
+	 *
+	 * @throws CommunicationException if the port could not be opened
+	 */
+	public void open() throws CommunicationException {
+		lifecycleLock.lock();
+		try {
+			if (!open) {
+				StartupTiming timing = new StartupTiming(transport.getName());
+				replyDecoder.reset();
+				transport.open(replyDecoder::feed, timing);
+				worker.start();
+				timing.mark("I/O thread");
+				metrics.publish();
+				timing.mark("metrics");
+				open = true;
+				if (settings.isAutoTune()) {
+					try {
+						autoTuneBaudRate();
+					} catch (CommunicationException e) {
+						DriverLog.warn(
+								"Baud rate of " + transport.getName() + " not tuned: " + e.getLocalizedMessage());
+					}
+					timing.mark("baud rate tuning");
+				}
+				startupTiming = timing;
+				DriverLog.info(timing.toString());
+			}
+		} finally {
+			lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns how long the steps of the latest {@link #open()} took, e.g. to find
+	 * out whether loading the native serial library or opening the port dominates
+	 * the start of an application.
+	 *
+	 * @return startup timing, or null if the bus has not been opened yet
+	 */
+	public StartupTiming getStartupTiming() {
+		return startupTiming;
+	}
+
+	/**
+	 * Loads the native library of the serial port in the background, so that it
+	 * is ready by the time the first bus is opened. The library is only ever
+	 * loaded once per process; calling this function is optional and merely moves
+	 * the loading off the path of {@link #open()}.
+	 */
+	public static void preloadSerialLibrary() {
+		Thread loader = new Thread(() -> {
+			try {
+				UARTSerialComm.loadLibrary();
+			} catch (LinkageError e) {
+				DriverLog.warn("Could not load the serial library: " + e); // open() will report it again
+			}
+		}, "TMC5161 serial library loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Finds the fastest reliable baud rate of the bus. Starting at the current
+	 * baud rate, the candidate rates of the settings are tried in ascending order.
+	 * A rate is reliable if every one of a number of CRC-checked reads of IFCNT and
+	 * GCONF from the driver given in the settings is answered, and answered with
+	 * the same values, since neither register changes by being read. Tuning stops
+	 * at the first rate that fails and the bus returns to the fastest rate that
+	 * passed.
+	 * <p>
+	 * The TMC5161 detects the baud rate from every datagram it receives, so the
+	 * drivers need no configuration for this. Other traffic on the bus should be
+	 * quiet while tuning.
+	 * </p>
+	 *
+	 * @return the baud rate the bus runs at, or 0 if the transport has no baud
+	 *         rate
+	 * @throws CommunicationException if the link is not reliable even at the
+	 *                                current baud rate
+	 */
+	public int autoTuneBaudRate() throws CommunicationException {
+		lifecycleLock.lock();
+		try {
+			open();
+			int best = transport.getBaudRate();
+			if (best == 0) {
+				return 0;
+			}
+			MotorDriverCommunication probe = getCommunication(settings.getAutoTuneSlaveAddress());
+			if (!verifyLink(probe)) {
+				throw new CommunicationException("No reliable link at " + best + " baud");
+			}
+			for (int baudRate : settings.getAutoTuneBaudRates()) {
+				if (baudRate <= best) {
+					continue;
+				}
+				if (!transport.setBaudRate(baudRate) || !verifyLink(probe)) {
+					break;
+				}
+				best = baudRate;
+			}
+			if (transport.getBaudRate() != best) {
+				transport.setBaudRate(best);
+				if (!verifyLink(probe)) {
+					throw new CommunicationException("Link lost when returning to " + best + " baud");
+				}
+			}
+			DriverLog.info("Baud rate of " + transport.getName() + " tuned to " + best);
+			return best;
+		} finally {
+			lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * @return current baud rate of the bus, or 0 if the transport has no baud rate
+	 */
+	public int getBaudRate() {
+		return transport.getBaudRate();
+	}
+
+	private boolean verifyLink(MotorDriverCommunication probe) {
+		replyDecoder.reset(); // drop what was received at the previous rate
+		int interfaceCounter = 0, generalConfiguration = 0;
+		for (int i = 0; i < settings.getVerificationReads(); i++) {
+			byte[][] replies;
+			try {
+				replies = probe.sendReadAccessPackages(RegisterAccess.IFCNT, RegisterAccess.GCONF);
+			} catch (CommunicationException e) {
+				return false;
+			}
+			int counter = PackageAnalyzer.extractRegisterValue(replies[0]);
+			int configuration = PackageAnalyzer.extractRegisterValue(replies[1]);
+			if (i == 0) {
+				interfaceCounter = counter;
+				generalConfiguration = configuration;
+			} else if (counter != interfaceCounter || configuration != generalConfiguration) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the serial port of the bus and stops its I/O thread. Requests still
+	 * waiting for a reply fail with a CommunicationException.
+	 *
+	 * @return true if port successfully closed, false otherwise
+	 */
+	public boolean close() {
+		lifecycleLock.lock();
+		try {
+			if (!open) {
+				return true;
+			}
+			open = false;
+			metrics.unpublish();
+			worker.stop();
+			return transport.close();
+		} finally {
+			lifecycleLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the handle of the motor driver with the given slave address. The
+	 * same handle is returned for every call with the same address.
+	 *
+	 * @param slaveAddress slave address of the TMC5161, 0 to 254
+	 * @return motor handle
+	 */
+	public synchronized StepperMotor getMotor(int slaveAddress) {
+		StepperMotor motor = motors[checkAddress(slaveAddress)];
+		if (motor == null) {
+			motor = new StepperMotor(new StepperMotorControl(getCommunication(slaveAddress)));
+			motors[slaveAddress] = motor;
+		}
+		return motor;
+	}
+
+	/**
+	 * Assigns consecutive slave addresses to drivers that are chained through
+	 * their NAI and NAO pins. The first driver in the chain has its NAI pin tied to
+	 * ground and answers at address 0 after power up. Once it has been given an
+	 * address of its own through SLAVECONF, it releases its NAO pin and the next
+	 * driver in the chain becomes reachable at address 0, and so on. Every new
+	 * address is confirmed through the IFCNT register: the counter read at address
+	 * 0 before SLAVECONF is written must have advanced by exactly one when read at
+	 * the new address. A SLAVECONF write that got lost is sent again, but only
+	 * if the driver still shows its old counter at address 0. Before that, a
+	 * driver whose counter is zero is given a harmless write to GSTAT, since the
+	 * next driver in the chain also shows zero.
+	 * <p>
+	 * A driver whose NAI pin is high answers at SLAVEADDR+1 (TMC5161 datasheet,
+	 * UART addressing). Drivers further down the chain still have their NAI pin
+	 * pulled high and therefore answer at address 1 until their turn comes. If
+	 * the first address was 1, the first driver and the next one would both
+	 * answer at address 1 as soon as SLAVECONF had been written, and their replies
+	 * would collide on the single wire. Neither 0 nor 1 can thus be assigned.
+	 * </p>
+	 *
+	 * @param numberOfDrivers number of drivers in the chain
+	 * @param firstAddress    address of the first driver, at least 2
+	 * @throws CommunicationException if a driver does not answer at its new
+	 *                                address
+	 */
+	public void assignAddresses(int numberOfDrivers, int firstAddress) throws CommunicationException {
+		if (firstAddress < 2) {
+			throw new IllegalArgumentException("Cannot assign address " + firstAddress
+					+ ": drivers that have not been addressed yet answer at 0 and 1");
+		}
+		if (numberOfDrivers < 1 || firstAddress + numberOfDrivers - 1 > MAX_SLAVE_ADDRESS) {
+			throw new IllegalArgumentException(
+					"Cannot assign " + numberOfDrivers + " addresses starting at " + firstAddress);
+		}
+		lifecycleLock.lock();
+		try {
+			open();
+			assignAddresses(getCommunication(0), numberOfDrivers, firstAddress);
+		} finally {
+			lifecycleLock.unlock();
+		}
+	}
+
+	private void assignAddresses(MotorDriverCommunication unaddressed, int numberOfDrivers, int firstAddress)
+			throws CommunicationException {
+		for (int i = 0; i < numberOfDrivers; i++) {
+			int address = firstAddress + i;
+			List<RegisterWrite> slaveConf = Collections
+					.singletonList(new RegisterWrite(TMC5161_SLAVECONF, SENDDELAY_MULTIPLE_SLAVES << 8 | address));
+			boolean assigned = false;
+			for (int attempt = 0; attempt < MAX_ADDRESS_ATTEMPTS && !assigned; attempt++) {
+				int counterBefore = markedInterfaceCounter(unaddressed, i);
+				unaddressed.writeBatch(slaveConf);
+				int counterAfter;
+				try {
+					counterAfter = getCommunication(address).readInterfaceCounter();
+				} catch (CommunicationException e) {
+					// only a driver that has not taken the address still shows the old counter
+					// at address 0, the next driver in the chain never shows a non-zero one
+					checkStillUnaddressed(unaddressed, counterBefore, i, address);
+					continue;
+				}
+				if ((counterAfter - counterBefore & 0xFF) != 1) {
+					throw new CommunicationException("Driver " + (i + 1) + " at address " + address
+							+ " accepted " + (counterAfter - counterBefore & 0xFF) + " writes instead of SLAVECONF");
+				}
+				assigned = true;
+			}
+			if (!assigned) {
+				throw new CommunicationException("Driver " + (i + 1) + " does not answer at address " + address);
+			}
+			unaddressed.getShadowRegisters().invalidateAll(); // address 0 is another chip now
+		}
+	}
+
+	/**
+	 * Reads IFCNT of the driver at address 0 and makes sure it is not zero, so
+	 * that the driver can be told apart from the next one in the chain, which has
+	 * not accepted any write since power up. A write of 0 to GSTAT clears no flag
+	 * and only advances the counter.
+	 */
+	private static int markedInterfaceCounter(MotorDriverCommunication unaddressed, int driver)
+			throws CommunicationException {
+		List<RegisterWrite> mark = Collections.singletonList(new RegisterWrite(RegisterAccess.GSTAT, 0));
+		int counter = readUnaddressedCounter(unaddressed, driver);
+		for (int attempt = 0; attempt < MAX_ADDRESS_ATTEMPTS && counter == 0; attempt++) {
+			unaddressed.writeBatch(mark);
+			counter = readUnaddressedCounter(unaddressed, driver);
+		}
+		if (counter != 0) {
+			return counter;
+		}
+		throw new CommunicationException("Driver " + (driver + 1) + " does not accept writes at address 0");
+	}
+
+	private static int readUnaddressedCounter(MotorDriverCommunication unaddressed, int driver)
+			throws CommunicationException {
+		try {
+			return unaddressed.readInterfaceCounter();
+		} catch (CommunicationException e) {
+			throw new CommunicationException("Driver " + (driver + 1) + " does not answer at address 0", e);
+		}
+	}
+
+	/**
+	 * Throws unless the driver at address 0 still shows the counter it had before
+	 * SLAVECONF was written, i.e. unless the write got lost and may be sent again.
+	 * Sending it again after the driver has taken the address would give the next
+	 * driver in the chain the same address.
+	 */
+	private static void checkStillUnaddressed(MotorDriverCommunication unaddressed, int counterBefore, int driver,
+			int address) throws CommunicationException {
+		int counter;
+		try {
+			counter = unaddressed.readInterfaceCounter();
+		} catch (CommunicationException e) {
+			throw new CommunicationException("Driver " + (driver + 1) + " answers neither at address "
+					+ address + " nor at address 0", e);
+		}
+		if (counter != counterBefore) {
+			throw new CommunicationException("Driver " + (driver + 1) + " does not answer at address " + address
+					+ " although SLAVECONF may have been accepted");
+		}
+	}
+
+	/**
+	 * Returns the communication object of a slave, creating it on first use.
+	 *
+	 * @param slaveAddress slave address of the TMC5161
+	 * @return communication object of the slave
+	 */
+	synchronized MotorDriverCommunication getCommunication(int slaveAddress) {
+		MotorDriverCommunication slave = slaves[checkAddress(slaveAddress)];
+		if (slave == null) {
+			slave = new MotorDriverCommunication(this, (byte) slaveAddress);
+			slaves[slaveAddress] = slave;
+		}
+		return slave;
+	}
+
+	/**
+	 * Sends a single Write Access datagram on this bus and waits until it has been
+	 * sent.
+	 *
+	 * @param registerAddress The address of the register that is written to
+	 * @param datagram        the encoded datagram
+	 * @throws CommunicationException if the datagram could not be sent
+	 */
+	void write(byte registerAddress, byte[] datagram) throws CommunicationException {
+		worker.submitWrite(registerAddress, datagram, datagram.length, false);
+	}
+
+	/**
+	 * Sends several back-to-back Write Access datagrams on this bus and waits
+	 * until they have been sent.
+	 *
+	 * @param buf    encoded datagrams
+	 * @param length number of bytes to send
+	 * @throws CommunicationException if the datagrams could not be sent
+	 */
+	void writeBatch(byte[] buf, int length) throws CommunicationException {
+		worker.submitWrite((byte) 0, buf, length, true);
+	}
+
+	/**
+	 * Queues a Read Access request for transmission on this bus.
+	 *
+	 * @param slaveAddress    slave that the request is addressed to
+	 * @param registerAddress The address of the register that is to be read from
+	 * @param requestDatagram the encoded request
+	 * @return future completed with the reply package
+	 */
+	CompletableFuture<byte[]> submitRead(byte slaveAddress, byte registerAddress, byte[] requestDatagram) {
+		return worker.submitRead(slaveAddress, registerAddress, requestDatagram);
+	}
+
+	/**
+	 * Queues several Read Access requests to one slave back-to-back, see
+	 * {@link BusWorker#submitReads(byte, byte[], byte[][])}.
+	 *
+	 * @param slaveAddress     slave that the requests are addressed to
+	 * @param registerAddress  the addresses of the registers that are to be read
+	 * @param requestDatagrams the encoded requests, in the same order
+	 * @return futures completed with the reply packages, in the same order
+	 */
+	List<CompletableFuture<byte[]>> submitReads(byte slaveAddress, byte[] registerAddress,
+			byte[][] requestDatagrams) {
+		return worker.submitReads(slaveAddress, registerAddress, requestDatagrams);
+	}
+
+	/**
+	 * Invoked by the reply decoder for every complete reply package. The decoder
+	 * is fed with the raw bytes from the transport, drops the echoes of our own
+	 * requests and only hands over reply packages with a valid CRC byte.
+	 *
+	 * @param replyPackage reply package from the TMC
+	 */
+	private void replyReceived(byte[] replyPackage) {
+		DriverLog.frame(LogLevel.TRACE, "Received bytes:", replyPackage, 0, replyPackage.length);
+		worker.replyReceived(replyPackage);
+	}
+
+	/**
+	 * Invoked by the reply decoder for every reply package that failed its CRC
+	 * check.
+	 *
+	 * @param replyPackage corrupted reply package, only valid during the call
+	 */
+	private void corruptReplyReceived(byte[] replyPackage) {
+		DriverLog.frame(LogLevel.DEBUG, "CRC failure:", replyPackage, 0, replyPackage.length);
+		worker.corruptReplyReceived(replyPackage);
+	}
+
+	private int getPendingCount() {
+		return worker.getPendingCount();
+	}
+
+	private static int checkAddress(int slaveAddress) {
+		if (slaveAddress < 0 || slaveAddress > MAX_SLAVE_ADDRESS) {
+			throw new IllegalArgumentException("Invalid slave address: " + slaveAddress);
+		}
+		return slaveAddress;
+	}
+}
@@ -0,0 +1,102 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class manages several UART buses, one per serial port. Each bus has its
+ * own I/O thread and its own request queue, and buses share no lock with each
+ * other, so the traffic on different ports runs fully in parallel and the total
+ * throughput grows with the number of ports. Motors are identified by the name
+ * of their serial port together with their slave address on that port.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class StepperMotorBusManager {
+	private final ConcurrentMap<String, StepperMotorBus> buses = new ConcurrentHashMap<>();
+
+	/**
+	 * Opens the bus on the serial port with the given system name. Opening a port
+	 * that is already open returns its existing bus.
+	 *
+	 * @param portName system name of the serial port, e.g. "ttyS1" or "COM3"
+	 * @return the open bus
+	 * @throws CommunicationException if the port could not be opened
+	 */
+	public StepperMotorBus openBus(String portName) throws CommunicationException {
+		StepperMotorBus bus = buses.computeIfAbsent(portName, StepperMotorBus::new);
+		bus.open();
+		return bus;
+	}
+
+	/**
+	 * Opens the bus on the serial port described by the settings. Opening a port
+	 * that is already open returns its existing bus, whose settings are kept.
+	 *
+	 * @param settings port name, baud rate, stop bits and auto-tuning of the port
+	 * @return the open bus
+	 * @throws CommunicationException if the port could not be opened
+	 */
+	public StepperMotorBus openBus(SerialSettings settings) throws CommunicationException {
+		StepperMotorBus bus = buses.computeIfAbsent(settings.getPortName(), name -> new StepperMotorBus(settings));
+		bus.open();
+		return bus;
+	}
+
+	/**
+	 * Opens the buses on all of the given serial ports.
+	 *
+	 * @param portNames system names of the serial ports
+	 * @throws CommunicationException if one of the ports could not be opened
+	 */
+	public void openBuses(String... portNames) throws CommunicationException {
+		for (String portName : portNames) {
+			openBus(portName);
+		}
+	}
+
+	/**
+	 * Returns the bus of a serial port that has been opened earlier.
+	 *
+	 * @param portName system name of the serial port
+	 * @return the bus, or null if the port has not been opened
+	 */
+	public StepperMotorBus getBus(String portName) {
+		return buses.get(portName);
+	}
+
+	/**
+	 * Returns the handle of a motor.
+	 *
+	 * @param portName     system name of the serial port the motor driver is
+	 *                     attached to
+	 * @param slaveAddress slave address of the motor driver on that port
+	 * @return motor handle
+	 * @throws IllegalStateException if the port has not been opened
+	 */
+	public StepperMotor getMotor(String portName, int slaveAddress) {
+		StepperMotorBus bus = buses.get(portName);
+		if (bus == null) {
+			throw new IllegalStateException("Port " + portName + " has not been opened");
+		}
+		return bus.getMotor(slaveAddress);
+	}
+
+	/**
+	 * Closes all buses.
+	 *
+	 * @return true if all ports were successfully closed, false otherwise
+	 */
+	public boolean closeAll() {
+		boolean closed = true;
+		List<StepperMotorBus> openBuses = new ArrayList<>(buses.values());
+		buses.clear();
+		for (StepperMotorBus bus : openBuses) {
+			closed &= bus.close();
+		}
+		return closed;
+	}
+}
@@ -1,5 +1,12 @@
 package se.quickcool.coolingdevice.IO.steppermotordriver;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * This class contains all the logic for controlling, operating and monitoring a
  * stepper motor using the TMC5161 motor controller. The motor is configured to
@@ -19,6 +26,8 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
  */
 class StepperMotorControl {
 	public static final int MICROSTEPS_PER_REVOLUTION = 51200; // according to TMC datasheet p. 59
+	// unreachable target position during normal operation, see rotateToTargetPosition
+	static final int CONTINUOUS_ROTATION_TARGET = 0x00099000;
 
 	/*
 	 * The values below correspond to the constants and register values contained in
@@ -52,13 +61,26 @@ class StepperMotorControl {
 
 	private MotorDriverCommunication mdc;
 	private PackageAnalyzer pa;
+	// unfortunately not all the configuration registers are readable ... =(
+	private final RegisterVerification configurationCheck;
+	// latest packed MotorStatus, published for reader threads
+	private final AtomicLong motorStatus = new AtomicLong();
+	private volatile boolean motorStatusKnown;
+	private volatile StatusSnapshot statusSnapshot; // latest pipelined status read, null before the first
 
 	private boolean enableStallguardException;
 	private boolean enableVelocityException;
+	private boolean acknowledgedWrites;
+	private Path registerImageFile; // warm restart is enabled if not null
 
 	private double desiredRPS;
 
+	private static final int GSTAT_RESET = 0x01, GSTAT_CLEAR_ALL = 0x07; // GSTAT bits are cleared by writing 1
 	private static final double MIN_VELOCITY = 0, MAX_VELOCITY = 5;
+	private static final MotorFault[] MOTOR_FAULTS = MotorFault.values();
+	private static final byte[] SNAPSHOT_REGISTERS = { RegisterAccess.VACTUAL, RegisterAccess.DRV_STATUS,
+			RegisterAccess.XACTUAL, RegisterAccess.RAMP_STAT };
+	private static final byte[] POSITION_REGISTERS = { RegisterAccess.XACTUAL, RegisterAccess.RAMP_STAT };
 
 	/**
 	 * Class constructor that creates instances of the class that analyzes incoming
@@ -66,8 +88,21 @@ class StepperMotorControl {
 	 * transportation layer.
 	 */
 	StepperMotorControl() {
+		this(new MotorDriverCommunication());
+	}
+
+	/**
+	 * Class constructor for a motor driver that is reached through the given
+	 * communication object, e.g. one of several slaves on a shared bus.
+	 * 
+	 * @param mdc communication object of the motor driver
+	 */
+	StepperMotorControl(MotorDriverCommunication mdc) {
 		this.pa = new PackageAnalyzer();
-		this.mdc = new MotorDriverCommunication();
+		this.mdc = mdc;
+		this.configurationCheck = new RegisterVerification().expect(TMC5161_GCONF, 0x0000000C)
+				.expect(TMC5161_CHOPCONF, 0x000100C3).expect(TMC5161_XACTUAL, 0)
+				.expect(TMC5161_RAMPMODE, TMC5161_MODE_POSITION);
 	}
 
 	/**
@@ -85,12 +120,16 @@ class StepperMotorControl {
 		this.desiredRPS = rps;
 		mdc.initializeSerialPort();
 		if (rps >= MIN_VELOCITY && rps <= MAX_VELOCITY) {
+			if (registerImageFile != null && warmRestart(rps)) {
+				DriverLog.info("Configuration ok");
+				return;
+			}
 			TMC5161Configuration(rps);
-			boolean readBackOk = readBackConfiguredValues();
-			if (!readBackOk) {
-				throw new DriverErrorException("Configuration values could not be read back correctly");
+			VerificationReport report = configurationCheck.verify(mdc);
+			if (!report.isPassed()) {
+				throw new DriverErrorException("Configuration values could not be read back correctly: " + report);
 			} else {
-				System.out.println("Configuration ok");
+				DriverLog.info("Configuration ok");
 			}
 
 		} else {
@@ -111,84 +150,57 @@ class StepperMotorControl {
 		return true;
 	}
 
-	private boolean readBackConfiguredValues() throws CommunicationException {
-		// Unfortunately not all the configuration registers are readable ... =(
-		System.out.println("Read back GCONF");
-		byte[] dataBytesGCONF = mdc.sendReadAccessPackage(TMC5161_GCONF);
-		if (dataBytesGCONF == null || dataBytesGCONF.length != 8
-				|| (dataBytesGCONF.length == 8 && !extractDatagram(dataBytesGCONF).equals("0x0000000C"))) {
-			return false;
-		}
-		delayMillis(3);
-		System.out.println("Read back CHOPCONF");
-		byte[] dataBytesCHOPCONF = mdc.sendReadAccessPackage(TMC5161_CHOPCONF);
-		if (dataBytesCHOPCONF == null || dataBytesCHOPCONF.length != 8
-				|| (dataBytesCHOPCONF.length == 8 && !extractDatagram(dataBytesCHOPCONF).equals("0x000100C3"))) {
-			return false;
-		}
-		delayMillis(3);
-		System.out.println("Read back XACTUAL");
-		byte[] dataBytesXACTUAL = mdc.sendReadAccessPackage(TMC5161_XACTUAL);
-		if (dataBytesXACTUAL == null || dataBytesXACTUAL.length != 8
-				|| (dataBytesXACTUAL.length == 8 && !extractDatagram(dataBytesXACTUAL).equals("0x00000000"))) {
-			return false;
-		}
-		delayMillis(3);
-		System.out.println("Read back RAMPMODE");
-		byte[] dataBytesRAMPMODE = mdc.sendReadAccessPackage(TMC5161_RAMPMODE);
-		if (dataBytesRAMPMODE == null || dataBytesRAMPMODE.length != 8
-				|| (dataBytesRAMPMODE.length == 8 && !extractDatagram(dataBytesRAMPMODE).equals("0x00000000"))) {
-			return false;
-		}
-
-		return true;
-	}
-
-	private String extractDatagram(byte[] replyPackage) {
-		int msb = 3, lsb = 6;
-		StringBuilder sb = new StringBuilder();
-		sb.append("0x");
-		for (int i = msb; i <= lsb; i++) {
-			int currByte = Byte.toUnsignedInt(replyPackage[i]);
-			if (currByte <= 15) {
-				sb.append("0" + Integer.toHexString(currByte).toUpperCase());
-			} else {
-				sb.append("" + Integer.toHexString(currByte).toUpperCase());
-			}
-		}
-		System.out.println("databytes read back: " + sb.toString());
-		return sb.toString();
-	}
-
-	private void delayMillis(int delayTimeMillis) {
-		try {
-			Thread.sleep(delayTimeMillis);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	}
-
 	/**
 	 * Initialize the stepper motor driver registers. The values written to these
 	 * registers configure among other things the address of the device, the current
 	 * to the motor and its initial target velocity. Read the comments below for
 	 * further details. The values are pre-configured and are not meant to be
 	 * changed "on-the-fly" (during normal motor operation) except for the target
-	 * velocity.
+	 * velocity. All registers are written in a single batch. If acknowledged
+	 * writes are enabled, the arrival of the batch is confirmed through the IFCNT
+	 * register and lost writes are sent again.
 	 * 
 	 * @param serialPort The serial port through which communication with the
 	 *                   TMC5161 occurs
 	 * @param rps        Start velocity in <i>Rotation per Second</i>
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                configuration could not be confirmed
+	 */
+	void TMC5161Configuration(double rps) throws CommunicationException {
+		DriverLog.info("Initialize motor drivers");
+		List<RegisterWrite> configuration = configuration(rps);
+
+		if (acknowledgedWrites) {
+			int retried = mdc.writeBatchVerified(configuration);
+			if (retried > 0) {
+				DriverLog.warn(retried + " configuration writes had to be repeated");
+			}
+		} else {
+			mdc.writeBatch(configuration); // one burst instead of one delayed write per register
+		}
+
+		if (registerImageFile != null) {
+			// clear the reset flag, so that a warm restart can tell whether the chip has
+			// lost this configuration since
+			mdc.sendWriteAccessPackage(RegisterAccess.GSTAT, GSTAT_CLEAR_ALL);
+			saveRegisterImage();
+		}
+	}
+
+	/**
+	 * Puts together the register values of the motor configuration.
+	 * 
+	 * @param rps Start velocity in <i>Rotation per Second</i>
+	 * @return register writes in the order they are to be carried out
 	 */
-	void TMC5161Configuration(double rps) {
-		System.out.println("Initialize motor drivers: \n");
+	private List<RegisterWrite> configuration(double rps) {
+		List<RegisterWrite> configuration = new ArrayList<>();
 
-		mdc.sendWriteAccessPackage(TMC5161_GCONF, 0x0000000C);
-		mdc.sendWriteAccessPackage(TMC5161_CHOPCONF, 0x000100C3);
+		configuration.add(new RegisterWrite(TMC5161_GCONF, 0x0000000C));
+		configuration.add(new RegisterWrite(TMC5161_CHOPCONF, 0x000100C3));
 
 		// Configure stallGuard
-		mdc.sendWriteAccessPackage(TMC5161_COOLCONF, 0x00000000);
+		configuration.add(new RegisterWrite(TMC5161_COOLCONF, 0x00000000));
 
 		/*
 		 * IHOLD (bit 0-4) = 1 ==> standby current = 0.24 A, IRUN (bit 8-12) = 2 ==> RMS
@@ -196,26 +208,130 @@ class StepperMotorControl {
 		 * 
 		 * Note that lower current means lower torque.
 		 */
-		mdc.sendWriteAccessPackage(TMC5161_IHOLD_IRUN, 0x00080201);
+		configuration.add(new RegisterWrite(TMC5161_IHOLD_IRUN, 0x00080201));
 
-		mdc.sendWriteAccessPackage(TMC5161_TPOWERDOWN, 0x0000000A);
-		mdc.sendWriteAccessPackage(TMC5161_TPWMTHRS, 0x000001F4);
+		configuration.add(new RegisterWrite(TMC5161_TPOWERDOWN, 0x0000000A));
+		configuration.add(new RegisterWrite(TMC5161_TPWMTHRS, 0x000001F4));
 
 		// Reset positions
-		mdc.sendWriteAccessPackage(TMC5161_XTARGET, 0);
-		mdc.sendWriteAccessPackage(TMC5161_XACTUAL, 0);
+		configuration.add(new RegisterWrite(TMC5161_XTARGET, 0));
+		configuration.add(new RegisterWrite(TMC5161_XACTUAL, 0));
 
 		double VMAX = MICROSTEPS_PER_REVOLUTION * rps; // VMAX = target velocity
 
-		mdc.sendWriteAccessPackage(TMC5161_VSTART, 1); // VMAX must >= VSTART
-		mdc.sendWriteAccessPackage(TMC5161_A1, 250);
-		mdc.sendWriteAccessPackage(TMC5161_V1, 50000);
-		mdc.sendWriteAccessPackage(TMC5161_AMAX, 250);
-		mdc.sendWriteAccessPackage(TMC5161_VMAX, (int) VMAX); // set target velocity
-		mdc.sendWriteAccessPackage(TMC5161_DMAX, 250);
-		mdc.sendWriteAccessPackage(TMC5161_D1, 250);
-		mdc.sendWriteAccessPackage(TMC5161_VSTOP, 2); // VSTOP must >= VSTART
-		mdc.sendWriteAccessPackage(TMC5161_RAMPMODE, TMC5161_MODE_POSITION);
+		configuration.add(new RegisterWrite(TMC5161_VSTART, 1)); // VMAX must >= VSTART
+		configuration.add(new RegisterWrite(TMC5161_A1, 250));
+		configuration.add(new RegisterWrite(TMC5161_V1, 50000));
+		configuration.add(new RegisterWrite(TMC5161_AMAX, 250));
+		configuration.add(new RegisterWrite(TMC5161_VMAX, (int) VMAX)); // set target velocity
+		configuration.add(new RegisterWrite(TMC5161_DMAX, 250));
+		configuration.add(new RegisterWrite(TMC5161_D1, 250));
+		configuration.add(new RegisterWrite(TMC5161_VSTOP, 2)); // VSTOP must >= VSTART
+		configuration.add(new RegisterWrite(TMC5161_RAMPMODE, TMC5161_MODE_POSITION));
+		return configuration;
+	}
+
+	/**
+	 * Takes over a driver that is still configured, e.g. after the program has
+	 * been restarted while the motor kept running. The register image saved by the
+	 * previous run tells what the write only registers hold. GSTAT and every
+	 * configuration register that can be read back are read in one pipelined
+	 * burst. If the reset flag in GSTAT shows that the chip has lost its
+	 * configuration since, or there is no usable image, the driver needs a full
+	 * configuration. Otherwise only the registers whose value differs from the
+	 * configuration for the given velocity are written. The position registers are
+	 * left alone, so a running motor keeps running.
+	 * 
+	 * @param rps Start velocity in <i>Rotation per Second</i>
+	 * @return true if the driver has been taken over, false if it needs a full
+	 *         configuration
+	 * @throws CommunicationException
+	 */
+	private boolean warmRestart(double rps) throws CommunicationException {
+		ShadowRegisters image;
+		try {
+			image = RegisterImageFile.load(registerImageFile);
+		} catch (IOException e) {
+			DriverLog.warn("Register image not used: " + e.getLocalizedMessage());
+			return false;
+		}
+		if (image == null) {
+			return false;
+		}
+
+		List<RegisterWrite> configuration = new ArrayList<>();
+		List<Byte> readBack = new ArrayList<>();
+		readBack.add(RegisterAccess.GSTAT);
+		readBack.add(RegisterAccess.XTARGET);
+		for (RegisterWrite write : configuration(rps)) {
+			byte registerAddress = write.getRegisterAddress();
+			if (registerAddress == TMC5161_XTARGET || registerAddress == TMC5161_XACTUAL) {
+				continue; // the motor may be running, its position is left alone
+			}
+			configuration.add(write);
+			if (RegisterAccess.isReadBackVerifiable(registerAddress)) {
+				readBack.add(registerAddress);
+			}
+		}
+		byte[] registers = new byte[readBack.size()];
+		for (int i = 0; i < registers.length; i++) {
+			registers[i] = readBack.get(i);
+		}
+		byte[][] replies = mdc.sendReadAccessPackages(registers);
+		int[] values = new int[DatagramEncoder.NUMBER_OF_REGISTERS];
+		for (int i = 0; i < registers.length; i++) {
+			values[registers[i]] = PackageAnalyzer.extractRegisterValue(replies[i]);
+		}
+		if ((values[RegisterAccess.GSTAT] & GSTAT_RESET) != 0) {
+			DriverLog.info("Driver has been reset since the register image was saved");
+			return false;
+		}
+
+		ShadowRegisters shadow = mdc.getShadowRegisters();
+		List<RegisterWrite> drifted = new ArrayList<>();
+		for (RegisterWrite write : configuration) {
+			byte registerAddress = write.getRegisterAddress();
+			int value = (int) write.getDatagram();
+			boolean current = RegisterAccess.isReadBackVerifiable(registerAddress) ? values[registerAddress] == value
+					: image.isKnown(registerAddress) && image.get(registerAddress) == value;
+			if (current && RegisterAccess.isReadBackVerifiable(registerAddress)) {
+				shadow.recordConfirmed(registerAddress, value);
+			} else if (current) {
+				shadow.recordWrite(registerAddress, value); // as saved, not confirmed
+			} else {
+				drifted.add(write);
+			}
+		}
+		shadow.recordConfirmed(RegisterAccess.XTARGET, values[RegisterAccess.XTARGET]);
+		if (acknowledgedWrites) {
+			mdc.writeBatchVerified(drifted);
+		} else {
+			mdc.writeBatch(drifted);
+		}
+		DriverLog.info("Warm restart: " + drifted.size() + " of " + configuration.size() + " registers rewritten");
+		saveRegisterImage();
+		return true;
+	}
+
+	/**
+	 * Enables warm restarts. The register image of the driver is saved to the given
+	 * file whenever the configuration changes, and the next start of the motor
+	 * takes over the configured driver instead of configuring it from scratch if
+	 * the image is still valid.
+	 * 
+	 * @param registerImageFile file holding the register image, or null to disable
+	 *                          warm restarts
+	 */
+	void enableWarmRestart(Path registerImageFile) {
+		this.registerImageFile = registerImageFile;
+	}
+
+	private void saveRegisterImage() {
+		try {
+			RegisterImageFile.save(registerImageFile, mdc.getShadowRegisters());
+		} catch (IOException e) {
+			DriverLog.warn("Register image not saved: " + e);
+		}
 	}
 
 	/**
@@ -228,8 +344,10 @@ class StepperMotorControl {
 	 * <b>Note:</b> This function <i>must</i> be invoked if any of the following
 	 * errors occur: open load or short-to-ground (on both phases)
 	 * </p>
+	 * 
+	 * @throws CommunicationException if the write could not be sent
 	 */
-	void disableDriver() {
+	void disableDriver() throws CommunicationException {
 		mdc.sendWriteAccessPackage(TMC5161_CHOPCONF, 0x000100C0); // TOFF = 0 disables drivers (see
 																	// p. 48)
 	}
@@ -251,10 +369,49 @@ class StepperMotorControl {
 	 * </p>
 	 * 
 	 * @param targetPos unreachable target position during normal operation
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
+	 */
+	void rotateToTargetPosition(long targetPos) throws CommunicationException {
+		DriverLog.info("Rotate to target pos");
+		write(TMC5161_XTARGET, targetPos); // rotate to target position, starts motor
+	}
+
+	/**
+	 * Starts a move of a trajectory. AMAX and VMAX are written first and then
+	 * XTARGET, which starts the move, all in one batch. AMAX and VMAX are left
+	 * out if they are confirmed to hold the values of the segment. With
+	 * acknowledged writes the batch is confirmed through IFCNT.
+	 * 
+	 * @param segment the move to start
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                batch could not be confirmed
 	 */
-	void rotateToTargetPosition(long targetPos) {
-		System.out.println("Rotate to target pos");
-		mdc.sendWriteAccessPackage(TMC5161_XTARGET, targetPos); // rotate to target position, starts motor
+	void writeSegment(TrajectorySegment segment) throws CommunicationException {
+		ShadowRegisters shadow = mdc.getShadowRegisters();
+		List<RegisterWrite> writes = new ArrayList<>(3);
+		if (!shadow.holds(TMC5161_AMAX, segment.getMaxAcceleration())) {
+			writes.add(new RegisterWrite(TMC5161_AMAX, segment.getMaxAcceleration()));
+		}
+		if (!shadow.holds(TMC5161_VMAX, segment.getMaxVelocity())) {
+			writes.add(new RegisterWrite(TMC5161_VMAX, segment.getMaxVelocity()));
+		}
+		writes.add(new RegisterWrite(TMC5161_XTARGET, segment.getTargetPosition()));
+		if (acknowledgedWrites) {
+			mdc.writeBatchVerified(writes);
+		} else {
+			mdc.writeBatch(writes);
+		}
+	}
+
+	/**
+	 * Reads XACTUAL and RAMP_STAT in one pipelined burst.
+	 * 
+	 * @param values receives XACTUAL and RAMP_STAT, in this order
+	 * @throws CommunicationException
+	 */
+	void readPosition(int[] values) throws CommunicationException {
+		mdc.readRegisters(POSITION_REGISTERS, POSITION_REGISTERS.length, values);
 	}
 
 	/**
@@ -263,19 +420,39 @@ class StepperMotorControl {
 	 * position and forcing it to restart its rotation as if it was programmed to
 	 * run in <i>velocity mode</i> thus rotating continuously.
 	 * 
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
 	 */
-	void resetPositionCounter() {
-		mdc.sendWriteAccessPackage(TMC5161_XACTUAL, 0);
+	void resetPositionCounter() throws CommunicationException {
+		write(TMC5161_XACTUAL, 0);
+	}
+
+	/**
+	 * Writes a register that controls the motion of the motor, confirmed through
+	 * IFCNT if acknowledged writes are enabled.
+	 */
+	private void write(byte registerAddress, long datagram) throws CommunicationException {
+		if (acknowledgedWrites) {
+			mdc.sendAcknowledgedWriteAccessPackage(registerAddress, datagram);
+		} else {
+			mdc.sendWriteAccessPackage(registerAddress, datagram);
+		}
 	}
 
 	/**
 	 * Power cycle 5 V VCC_IO pin on the TMC board that resets the chip. For the
-	 * time being it is a dummy function that does nothing except return. It will be
-	 * replaced with code in later version of this program.
+	 * time being it is a dummy function that only forgets the register values
+	 * written so far, since the chip loses them when it is reset. It will be
+	 * replaced with code in later version of this program. The driver status read
+	 * before the reset is dropped as well, so that its faults are not taken over
+	 * by a later check that reads only VACTUAL.
 	 */
 	public void powerCycle() {
-		// empty dummy function
-		return;
+		mdc.getShadowRegisters().invalidateAll();
+		long status;
+		do {
+			status = motorStatus.get();
+		} while (!motorStatus.compareAndSet(status, MotorStatus.pack(0, MotorStatus.actualVelocity(status))));
 	}
 
 	/**
@@ -283,17 +460,26 @@ class StepperMotorControl {
 	 * register called <i>VMAX</i>. The rps value is converted to microsteps by
 	 * multiplication with the number of microsteps we have per full revolution.
 	 * <p>
-	 * <b>Note:</b> The value can be changed during motion.
+	 * <b>Note:</b> The value can be changed during motion. Setting the velocity
+	 * that is already set causes no bus traffic if the earlier write has been
+	 * confirmed through acknowledged writes.
 	 * </p>
 	 * 
 	 * @param rps new target velocity given in <i>Rotation per Second</i>
 	 * @throws DriverErrorException
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
 	 */
-	void setNewTargetVelocity(double rps) throws DriverErrorException {
+	void setNewTargetVelocity(double rps) throws DriverErrorException, CommunicationException {
 		this.desiredRPS = rps;
 		if (rps >= MIN_VELOCITY && rps <= MAX_VELOCITY) {
 			double VMAX = MICROSTEPS_PER_REVOLUTION * rps;
-			mdc.sendWriteAccessPackage(TMC5161_VMAX, (int) VMAX);
+			ShadowRegisters shadow = mdc.getShadowRegisters();
+			boolean changed = !shadow.isKnown(TMC5161_VMAX) || shadow.get(TMC5161_VMAX) != (int) VMAX;
+			write(TMC5161_VMAX, (int) VMAX);
+			if (changed && registerImageFile != null) {
+				saveRegisterImage();
+			}
 		} else {
 			throw new DriverErrorException("Unacceptable velocity value");
 		}
@@ -312,104 +498,251 @@ class StepperMotorControl {
 	 * between the threads, and hence they need to coordinate access to it (global
 	 * variable).
 	 * <p>
+	 * The status that was found is published as one packed snapshot, see
+	 * {@link #getMotorStatus()}. Faults are not reported here; see
+	 * {@link #activeFaults(long)} and {@link #reportMotorStatus(long, int)}.
+	 * </p>
 	 * 
-	 * @param serialPort The serial port through which communication with the TMC
-	 *                   occurs
-	 * @param status     Requested motor status
-	 * @return Instance of the class MotorStatus containing relevant info
+	 * @return the packed motor status
+	 * @throws CommunicationException
 	 * @throws DataCorruptException
-	 * @throws DriverErrorException
 	 */
-	void checkMotorStatus() throws CommunicationException, DataCorruptException, DriverErrorException {
-		MotorStatus motorStatus;
-		byte[] databytesVelocity, databytesDriverError;
+	long updateMotorStatus() throws CommunicationException, DataCorruptException {
+		return readStatusSnapshot().getMotorStatus().getPackedStatus();
+	}
+
+	/**
+	 * Reads VACTUAL, DRV_STATUS, XACTUAL and RAMP_STAT in one pipelined burst and
+	 * publishes the result, both as the motor status and as the latest status
+	 * snapshot. The whole read costs about one round trip per register on the
+	 * wire, but the calling thread waits only once.
+	 * 
+	 * @return the status snapshot
+	 * @throws CommunicationException
+	 * @throws DataCorruptException
+	 */
+	StatusSnapshot readStatusSnapshot() throws CommunicationException, DataCorruptException {
+		long start = System.nanoTime();
+		byte[][] replies = mdc.sendReadAccessPackages(SNAPSHOT_REGISTERS);
+		long acquisitionNanos = System.nanoTime() - start;
+
+		int actualVelocity = pa.analyzeReplyPackage(StepperMotor.ACTUAL_VELOCITY_STATUS, replies[0]);
+		int driverStatus = pa.analyzeReplyPackage(StepperMotor.DRIVER_ERROR_STATUS, replies[1]);
+		long status = MotorStatus.pack(driverStatus, actualVelocity);
+		StatusSnapshot snapshot = new StatusSnapshot(new MotorStatus(status),
+				PackageAnalyzer.extractRegisterValue(replies[2]), PackageAnalyzer.extractRegisterValue(replies[3]),
+				System.currentTimeMillis(), acquisitionNanos);
+
+		motorStatus.set(status);
+		motorStatusKnown = true;
+		statusSnapshot = snapshot;
+		return snapshot;
+	}
+
+	/**
+	 * @return the latest status snapshot, or null if none has been read yet
+	 */
+	StatusSnapshot getStatusSnapshot() {
+		return statusSnapshot;
+	}
+
+	/**
+	 * Reads a part of the motor status, like {@link #updateMotorStatus()}. The
+	 * part that is not read is taken over from the status published last, so an
+	 * adaptive poller can read each status register at a rate of its own.
+	 * 
+	 * @param readVelocity     true to read the VACTUAL register
+	 * @param readDriverStatus true to read the DRV_STATUS register
+	 * @return the packed motor status
+	 * @throws CommunicationException
+	 * @throws DataCorruptException
+	 */
+	long updateMotorStatus(boolean readVelocity, boolean readDriverStatus)
+			throws CommunicationException, DataCorruptException {
+		if (readVelocity && readDriverStatus) {
+			return updateMotorStatus();
+		}
+		long previous = motorStatus.get();
+		int actualVelocity = MotorStatus.actualVelocity(previous);
+		int driverStatus = MotorStatus.driverStatus(previous);
 
 		// velocity status is not in same register as the other statuses so we need to
 		// inquire separately
-		databytesVelocity = mdc.sendReadAccessPackage(TMC5161_VACTUAL);
-
-		int tempActualVel = pa.analyzeReplyPackage(StepperMotor.ACTUAL_VELOCITY_STATUS, databytesVelocity)
-				.getActualVelocityStatus();
+		if (readVelocity) {
+			byte[] databytesVelocity = mdc.sendReadAccessPackage(TMC5161_VACTUAL);
+			actualVelocity = pa.analyzeReplyPackage(StepperMotor.ACTUAL_VELOCITY_STATUS, databytesVelocity);
+		}
 
 		// Now inquire driver error status
-		databytesDriverError = mdc.sendReadAccessPackage(TMC5161_DRVSTATUS);
+		if (readDriverStatus) {
+			byte[] databytesDriverError = mdc.sendReadAccessPackage(TMC5161_DRVSTATUS);
+			driverStatus = pa.analyzeReplyPackage(StepperMotor.DRIVER_ERROR_STATUS, databytesDriverError);
+		}
 
-		motorStatus = pa.analyzeReplyPackage(StepperMotor.DRIVER_ERROR_STATUS, databytesDriverError);
-		motorStatus.setActualVelocityStatus(tempActualVel);
+		// publish the complete snapshot at once, so readers never see half of it
+		long status = MotorStatus.pack(driverStatus, actualVelocity);
+		motorStatus.set(status);
+		motorStatusKnown = true;
+		return status;
+	}
+
+	/**
+	 * Finds all faults in a motor status. The velocity is only compared with the
+	 * desired velocity if velocity exceptions are enabled.
+	 * 
+	 * @param status packed motor status
+	 * @return the faults, one bit per {@link MotorFault}
+	 */
+	int activeFaults(long status) {
+		int faults = 0;
+		int actualVelocity = MotorStatus.actualVelocity(status);
+		if (enableVelocityException && actualVelocity >= 0) {
+			double upperVelocityLimit = 1.1 * this.desiredRPS;
+			double lowerVelocityLimit = 0.95 * this.desiredRPS;
+			if (actualVelocity <= lowerVelocityLimit) {
+				faults |= MotorFault.VELOCITY_TOO_LOW.getMask();
+			} else if (actualVelocity >= upperVelocityLimit) {
+				faults |= MotorFault.VELOCITY_TOO_HIGH.getMask();
+			}
+		}
+		if (MotorStatus.isStalled(status)) {
+			faults |= MotorFault.STALL.getMask();
+		}
+		for (MotorFault fault : MOTOR_FAULTS) {
+			if (fault.getFlag() != null && fault != MotorFault.STALL && fault.getFlag().isSet(status)) {
+				faults |= fault.getMask();
+			}
+		}
+		return faults;
+	}
 
-		if (motorStatus.getDataCorruptStatus() == true) {
-			throw new DataCorruptException("No motor status available");
+	/**
+	 * Returns the faults that a status check can find in the registers it has
+	 * read. Faults of a register that was not read are left as they were.
+	 * 
+	 * @param readVelocity     true if the VACTUAL register was read
+	 * @param readDriverStatus true if the DRV_STATUS register was read
+	 * @return the faults, one bit per {@link MotorFault}
+	 */
+	static int faultsReadBy(boolean readVelocity, boolean readDriverStatus) {
+		int faults = 0;
+		for (MotorFault fault : MOTOR_FAULTS) {
+			if (fault.getFlag() == null ? readVelocity : readDriverStatus) {
+				faults |= fault.getMask();
+			}
 		}
+		return faults;
+	}
 
+	/**
+	 * Prints a motor status and throws an exception for the first fault found in
+	 * it. A stall is only reported if stallguard exceptions are enabled.
+	 * 
+	 * @param status packed motor status
+	 * @param faults the faults found in the status, see
+	 *               {@link #activeFaults(long)}
+	 * @throws DriverErrorException
+	 */
+	void reportMotorStatus(long status, int faults) throws DriverErrorException {
 		// Velocity status
-		int actualVelocity = motorStatus.getActualVelocityStatus();
+		int actualVelocity = MotorStatus.actualVelocity(status);
 		if (actualVelocity >= 0) {
-			double upperVelocityLimit = 1.1 * ((double) this.desiredRPS);
-			double lowerVelocityLimit = 0.95 * ((double) this.desiredRPS);
-			if (enableVelocityException) {
-				if (actualVelocity <= lowerVelocityLimit) {
-					throw new DriverErrorException("Motor velocity too low");
-				} else if (actualVelocity >= upperVelocityLimit) {
-					throw new DriverErrorException("Motor velocity too high");
-				}
-			} // else just continue ...
-			int microSteps = StepperMotorControl.MICROSTEPS_PER_REVOLUTION;
-			System.out.println("Actual velocity: " + actualVelocity + " microsteps ===> "
-					+ Double.parseDouble(String.valueOf(actualVelocity)) / microSteps + " RPS");
+			if (MotorFault.VELOCITY_TOO_LOW.isIn(faults)) {
+				throw new DriverErrorException(MotorFault.VELOCITY_TOO_LOW);
+			} else if (MotorFault.VELOCITY_TOO_HIGH.isIn(faults)) {
+				throw new DriverErrorException(MotorFault.VELOCITY_TOO_HIGH);
+			}
+			if (DriverLog.isEnabled(LogLevel.DEBUG)) {
+				int microSteps = StepperMotorControl.MICROSTEPS_PER_REVOLUTION;
+				DriverLog.debug("Actual velocity: " + actualVelocity + " microsteps ===> "
+						+ (double) actualVelocity / microSteps + " RPS");
+			}
 		}
 
 		// Stallguard status
-		if (motorStatus.getStallGuardStatus()) {
+		if (MotorFault.STALL.isIn(faults)) {
 			if (enableStallguardException) {
-				throw new DriverErrorException("Stall detected!");
+				throw new DriverErrorException(MotorFault.STALL);
 			} // else do nothing ...
 		} else {
-			System.out.println("no stall");
+			DriverLog.debug("no stall");
 		}
 
 		// Overtemperature prewarning status
-		if (motorStatus.getOverTemperaturePrewarningStatus()) {
-			throw new DriverErrorException("Overtemperature pre-warning threshold is exceeded");
+		if (MotorFault.OVERTEMPERATURE_PREWARNING.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.OVERTEMPERATURE_PREWARNING);
 		} else {
-			System.out.println("no overtemperature pre-warning threshold has been exceeded");
+			DriverLog.debug("no overtemperature pre-warning threshold has been exceeded");
 		}
 
 		// Overtemperature status
-		if (motorStatus.getOverTemperatureStatus()) {
-			throw new DriverErrorException("Overtemperature!");
+		if (MotorFault.OVERTEMPERATURE.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.OVERTEMPERATURE);
 		} else {
-			System.out.println("no overtemperature");
+			DriverLog.debug("no overtemperature");
 		}
 
 		// Open load indicator phase A
-		if (motorStatus.getOpenLoadIndicatorStatus("Phase A")) {
-			throw new DriverErrorException("Open load detected on Phase A!");
+		if (MotorFault.OPEN_LOAD_A.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.OPEN_LOAD_A);
 		} else {
-			System.out.println("no open load detected on Phase A");
+			DriverLog.debug("no open load detected on Phase A");
 		}
 
 		// Open load indicator phase B
-		if (motorStatus.getOpenLoadIndicatorStatus("Phase B")) {
-			throw new DriverErrorException("Open load detected on Phase B!");
+		if (MotorFault.OPEN_LOAD_B.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.OPEN_LOAD_B);
 		} else {
-			System.out.println("no open load detected on Phase B");
+			DriverLog.debug("no open load detected on Phase B");
 		}
 
 		// Short to ground indicator phase A
-		if (motorStatus.getShortToGroundIndicatorStatus("Phase A")) {
-			throw new DriverErrorException("Short to ground detected on Phase A!");
+		if (MotorFault.SHORT_TO_GROUND_A.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.SHORT_TO_GROUND_A);
 		} else {
-			System.out.println("no short to ground detected on Phase A");
+			DriverLog.debug("no short to ground detected on Phase A");
 		}
 
 		// Short to ground indicator phase B
-		if (motorStatus.getShortToGroundIndicatorStatus("Phase B")) {
-			throw new DriverErrorException("Short to ground detected on Phase B!");
+		if (MotorFault.SHORT_TO_GROUND_B.isIn(faults)) {
+			throw new DriverErrorException(MotorFault.SHORT_TO_GROUND_B);
 		} else {
-			System.out.println("no short to ground detected on Phase B");
+			DriverLog.debug("no short to ground detected on Phase B");
 		}
 	}
 
+	/**
+	 * Returns the motor status found by the latest status check. The status is
+	 * read without any bus traffic and without locking, so it may be called from
+	 * any thread at any rate.
+	 * 
+	 * @return latest motor status, or {@link MotorStatus#UNKNOWN} if the status
+	 *         has not been checked yet
+	 */
+	MotorStatus getMotorStatus() {
+		return motorStatusKnown ? new MotorStatus(motorStatus.get()) : MotorStatus.UNKNOWN;
+	}
+
+	/**
+	 * Enables confirmation of configuration writes and of the writes of VMAX,
+	 * XTARGET and XACTUAL through the IFCNT register.
+	 * 
+	 * @param acknowledgedWrites true to verify configuration writes
+	 */
+	void enableAcknowledgedWrites(boolean acknowledgedWrites) {
+		this.acknowledgedWrites = acknowledgedWrites;
+	}
+
+	/**
+	 * Reads an arbitrary TMC5161 register without blocking the caller.
+	 * 
+	 * @param registerAddress The address of the register that is to be read from
+	 * @return future completed with the 32-bit register value
+	 */
+	CompletableFuture<Integer> readRegisterAsync(byte registerAddress) {
+		return mdc.readRegisterAsync(registerAddress);
+	}
+
 	/**
 	 * Enables the possibility to throw an exception as a result of motor exceeding
 	 * allowable velocity limits. Gives the user the option to enable or disable
@@ -0,0 +1,547 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory chain of TMC5161 drivers behind the {@link SerialTransport}
+ * interface. A bus created on an emulator runs the whole stack, from
+ * {@link StepperMotor} down to the CRC of every datagram, at full speed and
+ * without any hardware, e.g. in unit tests and load tests:
+ *
+ * <pre>
+ * StepperMotor motor = new StepperMotorBus(new TMC5161Emulator()).getMotor(0);
+ * </pre>
+ * <p>
+ * Every emulated driver has a register file, counts its accepted write accesses
+ * in IFCNT and answers Read Access requests with CRC-correct reply packages.
+ * Slave addressing works like on the real chain: the first driver has its NAI
+ * pin tied to ground, every further driver answers at SLAVEADDR + 1 until the
+ * driver before it has been given an address through SLAVECONF. A simple ramp
+ * generator advances XACTUAL and VACTUAL over time according to RAMPMODE, VMAX,
+ * AMAX, DMAX and XTARGET, and RAMP_STAT and DRV_STATUS follow the motion.
+ * </p>
+ * <p>
+ * Like on the single wire interface, every datagram that is sent is echoed
+ * back before the reply. The reply latency, random loss of bytes and corrupted
+ * CRC bytes can be configured to exercise the error handling of the upper
+ * layers. Faults like a stall or overtemperature are injected with
+ * {@link #setDriverFaults(int, int)}.
+ * </p>
+ * <p>
+ * <b>Note:</b> Only the parts of the chip that the upper layers rely on are
+ * emulated. The ramp ignores A1, V1, D1, VSTART and VSTOP, and write only
+ * registers read back as 0.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public class TMC5161Emulator implements SerialTransport {
+	/**
+	 * DRV_STATUS fault flags that can be injected, see datasheet p. 52.
+	 */
+	public static final int STALLGUARD = 1 << 24, OVERTEMPERATURE = 1 << 25, OVERTEMPERATURE_PREWARNING = 1 << 26,
+			SHORT_TO_GROUND_A = 1 << 27, SHORT_TO_GROUND_B = 1 << 28, OPEN_LOAD_A = 1 << 29, OPEN_LOAD_B = 1 << 30;
+
+	private static final int FAULT_FLAGS = 0x7F << 24;
+	private static final int STANDSTILL = 1 << 31;
+	private static final int SG_RESULT_RUNNING = 500; // load value reported while there is no stall
+	private static final int VELOCITY_REACHED = 1 << 8, POSITION_REACHED = 1 << 9, VZERO = 1 << 10; // RAMP_STAT
+	private static final int GSTAT_RESET = 0x01;
+	private static final int IOIN_VERSION = 0x30 << 24;
+	private static final int POSITIONING_MODE = 0, VELOCITY_POSITIVE_MODE = 1, VELOCITY_NEGATIVE_MODE = 2;
+
+	private static final double CLOCK_FREQUENCY = 12e6; // internal clock of the TMC5161
+	private static final double MICROSTEPS_PER_VELOCITY_UNIT = CLOCK_FREQUENCY / (1 << 24); // µsteps/s
+	private static final double VELOCITY_UNITS_PER_ACCELERATION_UNIT = CLOCK_FREQUENCY / (1 << 17); // per second
+	private static final long RAMP_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final AtomicInteger instanceNumber = new AtomicInteger();
+
+	private final String name;
+	private final EmulatedDriver[] chain;
+	private final Random random = new Random();
+	private final AtomicLong droppedBytes = new AtomicLong();
+	private final AtomicLong corruptedReplies = new AtomicLong();
+
+	private volatile long replyLatencyNanos;
+	private volatile double byteDropRate;
+	private volatile double crcCorruptionRate;
+	private volatile boolean echo = true;
+	private volatile int baudRate = SerialSettings.DEFAULT_BAUD_RATE;
+	private volatile int maxBaudRate = Integer.MAX_VALUE;
+	private volatile ByteListener listener;
+	private volatile ScheduledExecutorService wire; // delivers the bytes sent by the drivers
+
+	/**
+	 * Creates a single TMC5161 which answers at slave address 0.
+	 */
+	public TMC5161Emulator() {
+		this(1);
+	}
+
+	/**
+	 * Creates a chain of TMC5161 drivers connected through their NAI and NAO pins.
+	 *
+	 * @param numberOfDrivers number of drivers in the chain
+	 */
+	public TMC5161Emulator(int numberOfDrivers) {
+		if (numberOfDrivers < 1) {
+			throw new IllegalArgumentException("At least one driver is needed");
+		}
+		this.name = "emulator-" + instanceNumber.incrementAndGet();
+		this.chain = new EmulatedDriver[numberOfDrivers];
+		long now = System.nanoTime();
+		for (int i = 0; i < numberOfDrivers; i++) {
+			chain[i] = new EmulatedDriver(now);
+		}
+	}
+
+	/**
+	 * Sets the time between the end of a Read Access request and the arrival of
+	 * its reply.
+	 *
+	 * @param latencyMicros reply latency, 0 by default
+	 */
+	public void setReplyLatencyMicros(long latencyMicros) {
+		this.replyLatencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	/**
+	 * Sets the probability with which a single byte is lost on the wire, in either
+	 * direction. A datagram that loses a byte on the way to the drivers is
+	 * ignored by them.
+	 *
+	 * @param rate probability between 0 and 1, 0 by default
+	 */
+	public void setByteDropRate(double rate) {
+		this.byteDropRate = checkRate(rate);
+	}
+
+	/**
+	 * Sets the probability with which a reply package arrives with a wrong CRC
+	 * byte.
+	 *
+	 * @param rate probability between 0 and 1, 0 by default
+	 */
+	public void setCrcCorruptionRate(double rate) {
+		this.crcCorruptionRate = checkRate(rate);
+	}
+
+	/**
+	 * @param echo true if every sent datagram is echoed back like on the single
+	 *             wire interface, which is the default
+	 */
+	public void setEcho(boolean echo) {
+		this.echo = echo;
+	}
+
+	/**
+	 * Sets the highest baud rate the emulated wiring can take. Above it, the
+	 * drivers do not understand any datagram and the master receives garbage
+	 * instead of the echoes, which exercises the baud rate auto-tuning.
+	 *
+	 * @param maxBaudRate highest reliable baud rate, unlimited by default
+	 */
+	public void setMaxBaudRate(int maxBaudRate) {
+		this.maxBaudRate = maxBaudRate;
+	}
+
+	/**
+	 * The emulated link takes any baud rate, but only works up to the rate set
+	 * with {@link #setMaxBaudRate(int)}.
+	 */
+	@Override
+	public boolean setBaudRate(int baudRate) {
+		this.baudRate = baudRate;
+		return true;
+	}
+
+	@Override
+	public int getBaudRate() {
+		return baudRate;
+	}
+
+	/**
+	 * Makes the byte losses and CRC corruptions repeatable.
+	 *
+	 * @param seed seed of the random generator
+	 */
+	public void setRandomSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Sets the fault flags that a driver reports in DRV_STATUS. A stall also
+	 * reports a SG_RESULT of 0.
+	 *
+	 * @param chainPosition position of the driver in the chain, starting at 0
+	 * @param faultFlags    any combination of the flag constants of this class, 0
+	 *                      to clear all faults
+	 */
+	public synchronized void setDriverFaults(int chainPosition, int faultFlags) {
+		chain[chainPosition].faultFlags = faultFlags & FAULT_FLAGS;
+	}
+
+	/**
+	 * Returns the current contents of a register as the driver would report it.
+	 * Unlike a Read Access request this also returns write only registers.
+	 *
+	 * @param chainPosition   position of the driver in the chain, starting at 0
+	 * @param registerAddress register address
+	 * @return register value
+	 */
+	public synchronized int getRegister(int chainPosition, byte registerAddress) {
+		EmulatedDriver driver = chain[chainPosition];
+		int register = registerAddress & 0x7F;
+		return RegisterAccess.isReadable(registerAddress) ? driver.read(register, System.nanoTime())
+				: driver.registers[register];
+	}
+
+	/**
+	 * @return number of bytes lost on the wire so far
+	 */
+	public long getDroppedBytes() {
+		return droppedBytes.get();
+	}
+
+	/**
+	 * @return number of reply packages sent with a wrong CRC byte so far
+	 */
+	public long getCorruptedReplies() {
+		return corruptedReplies.get();
+	}
+
+	@Override
+	public synchronized void open(ByteListener listener) throws CommunicationException {
+		if (wire != null) {
+			throw new CommunicationException("Emulator " + name + " is already open");
+		}
+		this.listener = listener;
+		this.wire = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "TMC5161 " + name + " wire");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public synchronized boolean close() {
+		if (wire != null) {
+			wire.shutdownNow();
+			wire = null;
+		}
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public void writeAccess(byte registerAddress, byte[] datagram) {
+		receive(datagram, 0, DatagramEncoder.WRITE_ACCESS_LENGTH);
+	}
+
+	@Override
+	public void writeBatch(byte[] buf, int length) {
+		for (int off = 0; off + DatagramEncoder.WRITE_ACCESS_LENGTH <= length; off += DatagramEncoder.WRITE_ACCESS_LENGTH) {
+			receive(buf, off, DatagramEncoder.WRITE_ACCESS_LENGTH);
+		}
+	}
+
+	@Override
+	public void readAccess(byte registerAddress, byte[] request) {
+		receive(request, 0, DatagramEncoder.READ_ACCESS_LENGTH);
+	}
+
+	/**
+	 * Handles one datagram sent by the master, the way every driver on the wire
+	 * would.
+	 */
+	private synchronized void receive(byte[] buf, int off, int len) {
+		if (wire == null) {
+			throw new IllegalStateException("Emulator " + name + " is not open");
+		}
+		if (baudRate > maxBaudRate) {
+			byte[] garbage = Arrays.copyOfRange(buf, off, off + len);
+			for (int i = 0; i < garbage.length; i++) {
+				garbage[i] = (byte) random.nextInt(); // sampled at the wrong bit times
+			}
+			transmit(garbage, 0);
+			return;
+		}
+		if (echo) {
+			transmit(Arrays.copyOfRange(buf, off, off + len), 0);
+		}
+		for (int i = 0; i < len; i++) {
+			if (dropByte()) {
+				return; // the drivers do not see a complete datagram
+			}
+		}
+		if (buf[off] != DatagramEncoder.SYNC_BYTE || CRCgenerator.crc(buf, off, len - 1) != buf[off + len - 1]) {
+			return;
+		}
+		int slaveAddress = buf[off + 1] & 0xFF;
+		int register = buf[off + 2] & 0x7F;
+		boolean write = (buf[off + 2] & 0x80) != 0;
+		if (write != (len == DatagramEncoder.WRITE_ACCESS_LENGTH)) {
+			return;
+		}
+		long now = System.nanoTime();
+
+		if (write) {
+			int value = (buf[off + 3] & 0xFF) << 24 | (buf[off + 4] & 0xFF) << 16 | (buf[off + 5] & 0xFF) << 8
+					| (buf[off + 6] & 0xFF);
+			// the addresses are taken before the write since SLAVECONF changes them
+			boolean[] addressed = new boolean[chain.length];
+			for (int i = 0; i < chain.length; i++) {
+				addressed[i] = addressOf(i) == slaveAddress;
+			}
+			for (int i = 0; i < chain.length; i++) {
+				if (addressed[i]) {
+					chain[i].write(register, value, now);
+				}
+			}
+			return;
+		}
+
+		EmulatedDriver replying = null;
+		int replies = 0;
+		for (int i = 0; i < chain.length; i++) {
+			if (addressOf(i) == slaveAddress) {
+				replying = chain[i];
+				replies++;
+			}
+		}
+		if (replying == null) {
+			return; // nobody answers: the master runs into its timeout
+		}
+		byte[] reply = new byte[DatagramEncoder.REPLY_LENGTH];
+		int value = replying.read(register, now);
+		reply[0] = DatagramEncoder.SYNC_BYTE;
+		reply[1] = DatagramEncoder.MASTER_ADDRESS;
+		reply[2] = (byte) register;
+		reply[3] = (byte) (value >>> 24);
+		reply[4] = (byte) (value >>> 16);
+		reply[5] = (byte) (value >>> 8);
+		reply[6] = (byte) value;
+		reply[7] = CRCgenerator.crc(reply, 0, DatagramEncoder.REPLY_LENGTH - 1);
+		if (replies > 1 || random.nextDouble() < crcCorruptionRate) {
+			reply[7] ^= 0x01; // several drivers answering at once garble the reply as well
+			corruptedReplies.incrementAndGet();
+		}
+		transmit(reply, replyLatencyNanos);
+	}
+
+	/**
+	 * Returns the slave address a driver currently answers at. NAI of the first
+	 * driver is tied to ground, NAI of every further driver is held high by the
+	 * NAO pin of the previous driver until that one has been addressed.
+	 */
+	private int addressOf(int chainPosition) {
+		boolean naiHigh = chainPosition > 0 && !chain[chainPosition - 1].addressed;
+		return (chain[chainPosition].slaveAddress + (naiHigh ? 1 : 0)) & 0xFF;
+	}
+
+	/**
+	 * Hands bytes to the listener on the wire thread, losing some of them if byte
+	 * drops are configured.
+	 */
+	private void transmit(byte[] bytes, long delayNanos) {
+		int length = bytes.length;
+		if (byteDropRate > 0) {
+			length = 0;
+			for (byte b : bytes) {
+				if (!dropByte()) {
+					bytes[length++] = b;
+				}
+			}
+		}
+		int received = length;
+		ByteListener receiver = listener;
+		wire.schedule(() -> receiver.bytesReceived(bytes, 0, received), delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private boolean dropByte() {
+		if (byteDropRate > 0 && random.nextDouble() < byteDropRate) {
+			droppedBytes.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private static double checkRate(double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("Rate must be between 0 and 1: " + rate);
+		}
+		return rate;
+	}
+
+	/**
+	 * Register file and motion state of one driver. Only accessed while holding
+	 * the lock of the emulator.
+	 */
+	private static final class EmulatedDriver {
+		final int[] registers = new int[DatagramEncoder.NUMBER_OF_REGISTERS];
+		int slaveAddress;
+		boolean addressed; // SLAVECONF has been written, NAO is low
+		int interfaceCounter;
+		int faultFlags;
+		double position; // microsteps
+		double velocity; // in units of VMAX
+		long lastUpdateNanos;
+
+		EmulatedDriver(long now) {
+			registers[RegisterAccess.GSTAT] = GSTAT_RESET;
+			lastUpdateNanos = now;
+		}
+
+		void write(int register, int value, long now) {
+			advance(now);
+			switch (register) {
+			case RegisterAccess.SLAVECONF:
+				slaveAddress = value & 0xFF;
+				addressed = true;
+				break;
+			case RegisterAccess.GSTAT:
+				registers[register] &= ~value; // flags are cleared by writing 1
+				break;
+			case RegisterAccess.XACTUAL:
+				position = value;
+				break;
+			default:
+				break;
+			}
+			if (register != RegisterAccess.GSTAT) {
+				registers[register] = value;
+			}
+			interfaceCounter = (interfaceCounter + 1) & 0xFF;
+		}
+
+		int read(int register, long now) {
+			advance(now);
+			switch (register) {
+			case RegisterAccess.IFCNT:
+				return interfaceCounter;
+			case RegisterAccess.IOIN:
+				return IOIN_VERSION;
+			case RegisterAccess.XACTUAL:
+				return (int) (long) Math.floor(position);
+			case RegisterAccess.VACTUAL:
+				return (int) velocity & 0xFFFFFF; // 24-bit two's complement
+			case RegisterAccess.RAMP_STAT:
+				return rampStatus();
+			case RegisterAccess.DRV_STATUS:
+				return driverStatus();
+			default:
+				return RegisterAccess.isReadable((byte) register) ? registers[register] : 0;
+			}
+		}
+
+		private int rampStatus() {
+			int status = 0;
+			if (velocity == 0) {
+				status |= VZERO;
+			}
+			if (Math.abs(velocity) == (registers[RegisterAccess.VMAX] & 0x7FFFFF)) {
+				status |= VELOCITY_REACHED;
+			}
+			if ((int) (long) Math.floor(position) == registers[RegisterAccess.XTARGET]) {
+				status |= POSITION_REACHED;
+			}
+			return status;
+		}
+
+		private int driverStatus() {
+			int irun = registers[RegisterAccess.IHOLD_IRUN] >> 8 & 0x1F;
+			int ihold = registers[RegisterAccess.IHOLD_IRUN] & 0x1F;
+			int status = faultFlags;
+			status |= (velocity == 0 ? ihold : irun) << 16; // CS_ACTUAL
+			status |= (faultFlags & STALLGUARD) != 0 ? 0 : SG_RESULT_RUNNING;
+			if (velocity == 0) {
+				status |= STANDSTILL;
+			}
+			return status;
+		}
+
+		/**
+		 * Runs the ramp generator up to the given time in steps of at most one
+		 * millisecond.
+		 */
+		private void advance(long now) {
+			long elapsed = now - lastUpdateNanos;
+			lastUpdateNanos = now;
+			while (elapsed > 0) {
+				long step = Math.min(elapsed, RAMP_STEP_NANOS);
+				if (!rampStep(step / 1e9)) {
+					return; // at rest
+				}
+				elapsed -= step;
+			}
+		}
+
+		private boolean rampStep(double seconds) {
+			double maxVelocity = registers[RegisterAccess.VMAX] & 0x7FFFFF;
+			double acceleration = (registers[RegisterAccess.AMAX] & 0xFFFF) * VELOCITY_UNITS_PER_ACCELERATION_UNIT;
+			double deceleration = (registers[RegisterAccess.DMAX] & 0xFFFF) * VELOCITY_UNITS_PER_ACCELERATION_UNIT;
+			if (deceleration == 0) {
+				deceleration = acceleration;
+			}
+			int target = registers[RegisterAccess.XTARGET];
+
+			double targetVelocity;
+			switch (registers[RegisterAccess.RAMPMODE] & 0x3) {
+			case POSITIONING_MODE:
+				double distance = target - position;
+				if (velocity == 0 && Math.abs(distance) < 1) {
+					return false;
+				}
+				double speed = Math.abs(velocity) * MICROSTEPS_PER_VELOCITY_UNIT;
+				double brakingDistance = deceleration > 0
+						? speed * speed / (2 * deceleration * MICROSTEPS_PER_VELOCITY_UNIT)
+						: 0;
+				boolean wrongDirection = velocity != 0 && Math.signum(velocity) != Math.signum(distance);
+				targetVelocity = wrongDirection || brakingDistance >= Math.abs(distance) ? 0
+						: Math.copySign(maxVelocity, distance);
+				break;
+			case VELOCITY_POSITIVE_MODE:
+				targetVelocity = maxVelocity;
+				break;
+			case VELOCITY_NEGATIVE_MODE:
+				targetVelocity = -maxVelocity;
+				break;
+			default: // hold mode keeps the current velocity
+				targetVelocity = velocity;
+				break;
+			}
+			if (velocity == 0 && targetVelocity == 0) {
+				return false;
+			}
+
+			boolean speedingUp = Math.abs(targetVelocity) > Math.abs(velocity) && targetVelocity * velocity >= 0;
+			double change = (speedingUp ? acceleration : deceleration) * seconds;
+			if (Math.abs(targetVelocity - velocity) <= change) {
+				velocity = targetVelocity;
+			} else {
+				velocity += Math.copySign(change, targetVelocity - velocity);
+			}
+
+			double previous = position;
+			position += velocity * MICROSTEPS_PER_VELOCITY_UNIT * seconds;
+			if ((registers[RegisterAccess.RAMPMODE] & 0x3) == POSITIONING_MODE
+					&& (target - previous) * (target - position) <= 0) {
+				position = target; // passed the target: stop right on it
+				velocity = 0;
+			}
+			return true;
+		}
+	}
+}
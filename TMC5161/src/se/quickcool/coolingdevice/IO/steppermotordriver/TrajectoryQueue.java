@@ -0,0 +1,262 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class runs a sequence of moves on one motor. Segments are queued with
+ * {@link #add(TrajectorySegment)}; a thread of the queue writes the AMAX, VMAX
+ * and XTARGET registers of a segment in one batch, watches the motor until it
+ * has reached the target position and streams the next segment right away, so
+ * that successive moves run back-to-back without the caller polling the motor.
+ * <p>
+ * While a segment runs, XACTUAL and RAMP_STAT are read together in one
+ * pipelined burst. The time until the next read follows the progress of the
+ * motor: half the time the motor still needs at its current pace, between the
+ * minimum and maximum polling period. A long move thus costs few reads while
+ * the end of a move is found within the minimum period.
+ * </p>
+ * <p>
+ * <b>Note:</b> In positioning mode the ramp generator brings the motor to a
+ * standstill at every target position, so each segment starts from rest. The
+ * motor must have been configured, see
+ * {@link StepperMotor#configureStepperMotor(double)}. A {@link MotorSupervisor}
+ * does not reset the position counter of a motor while its trajectory runs,
+ * and segments added during such a reset wait until it is done.
+ * </p>
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+public final class TrajectoryQueue {
+	private static final int MAX_CONSECUTIVE_FAILURES = 3;
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	/**
+	 * A queued segment together with the future completed when it has been
+	 * reached.
+	 */
+	private static final class Move {
+		final TrajectorySegment segment;
+		final CompletableFuture<Void> reached = new CompletableFuture<>();
+
+		Move(TrajectorySegment segment) {
+			this.segment = segment;
+		}
+	}
+
+	private final StepperMotorControl smc;
+	private final ArrayDeque<Move> moves = new ArrayDeque<>();
+	// taken before the monitor by everything that starts segments, and held by a
+	// reset of the position counter while it waits for the bus
+	private final ReentrantLock startLock = new ReentrantLock();
+	private Move current; // segment that has been written to the driver, null when idle
+	private Thread thread; // null when idle
+	private volatile long minPollNanos = TimeUnit.MILLISECONDS.toNanos(2);
+	private volatile long maxPollNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+	TrajectoryQueue(StepperMotorControl smc) {
+		this.smc = smc;
+	}
+
+	/**
+	 * Queues a segment. If no segment is running, it is started right away.
+	 *
+	 * @param segment the move to carry out after all segments queued before
+	 * @return future completed when the motor has reached the target position of
+	 *         the segment, or completed exceptionally if the segment was cancelled
+	 *         or the motor could not be reached
+	 */
+	public CompletableFuture<Void> add(TrajectorySegment segment) {
+		startLock.lock();
+		try {
+			synchronized (this) {
+				Move move = new Move(segment);
+				moves.addLast(move);
+				if (thread == null) {
+					thread = MotorSupervisor.newThread(this::run,
+							"TMC5161 trajectory " + threadNumber.incrementAndGet());
+					thread.start();
+				}
+				return move.reached;
+			}
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	/**
+	 * Queues several segments, see {@link #add(TrajectorySegment)}.
+	 *
+	 * @param segments the moves to carry out in this order
+	 * @return future completed when the motor has reached the target position of
+	 *         the last segment
+	 */
+	public CompletableFuture<Void> addAll(TrajectorySegment... segments) {
+		startLock.lock();
+		try {
+			CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+			for (TrajectorySegment segment : segments) {
+				last = add(segment);
+			}
+			return last;
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	/**
+	 * Drops all segments, including the one that is running. The futures of the
+	 * segments are cancelled. The driver itself is not told, so the motor still
+	 * goes to the target position of the running segment.
+	 */
+	public void cancel() {
+		Move running;
+		ArrayDeque<Move> dropped;
+		synchronized (this) {
+			running = current;
+			current = null;
+			dropped = new ArrayDeque<>(moves);
+			moves.clear();
+		}
+		if (running != null) {
+			running.reached.cancel(false);
+		}
+		for (Move move : dropped) {
+			move.reached.cancel(false);
+		}
+	}
+
+	/**
+	 * Sets how often the motor is read while a segment runs.
+	 *
+	 * @param minMillis shortest time between two reads, which is also the longest
+	 *                  time between the end of a segment and the start of the next
+	 * @param maxMillis longest time between two reads
+	 */
+	public void setPollingPeriods(long minMillis, long maxMillis) {
+		if (minMillis <= 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException("Invalid polling periods: " + minMillis + ", " + maxMillis);
+		}
+		this.minPollNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+		this.maxPollNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+	}
+
+	/**
+	 * @return true while a segment runs or is queued
+	 */
+	public synchronized boolean isRunning() {
+		return current != null || !moves.isEmpty();
+	}
+
+	/**
+	 * Resets the position counter unless a segment runs or is queued. No segment
+	 * can be added until the reset is done, so none starts from a position counter
+	 * that is zeroed under it.
+	 *
+	 * @return true if the position counter has been reset
+	 * @throws CommunicationException if acknowledged writes are enabled and the
+	 *                                write could not be confirmed
+	 */
+	boolean resetPositionCounterIfIdle() throws CommunicationException {
+		startLock.lock();
+		try {
+			if (isRunning()) {
+				return false;
+			}
+			smc.resetPositionCounter();
+			return true;
+		} finally {
+			startLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the segment that runs, or null if none
+	 */
+	public synchronized TrajectorySegment getCurrentSegment() {
+		return current != null ? current.segment : null;
+	}
+
+	/**
+	 * @return number of segments that wait for the running one to finish
+	 */
+	public synchronized int getQueuedCount() {
+		return moves.size();
+	}
+
+	private void run() {
+		int[] position = new int[2]; // XACTUAL and RAMP_STAT
+		while (true) {
+			Move move;
+			synchronized (this) {
+				move = moves.pollFirst();
+				current = move;
+				if (move == null) {
+					thread = null;
+					return;
+				}
+			}
+			try {
+				follow(move, position);
+			} catch (CommunicationException | RuntimeException e) {
+				DriverLog.warn("Trajectory aborted: " + e.getLocalizedMessage());
+				move.reached.completeExceptionally(e);
+				cancel();
+			}
+		}
+	}
+
+	/**
+	 * Starts a segment and waits until it has been reached or cancelled.
+	 */
+	private void follow(Move move, int[] position) throws CommunicationException {
+		TrajectorySegment segment = move.segment;
+		smc.writeSegment(segment);
+		int target = segment.getTargetPosition();
+		int failures = 0;
+		long lastNanos = 0;
+		int lastPosition = 0;
+		while (true) {
+			synchronized (this) {
+				if (current != move) {
+					return; // cancelled
+				}
+			}
+			try {
+				smc.readPosition(position);
+				failures = 0;
+			} catch (CommunicationException e) {
+				if (++failures == MAX_CONSECUTIVE_FAILURES) {
+					throw e;
+				}
+				LockSupport.parkNanos(minPollNanos);
+				continue;
+			}
+			long now = System.nanoTime();
+			if (position[0] == target && StatusSnapshot.positionReached(position[1])) {
+				synchronized (this) {
+					if (current == move) {
+						current = null;
+					}
+				}
+				move.reached.complete(null);
+				return;
+			}
+
+			long delay = minPollNanos;
+			if (lastNanos != 0 && position[0] != lastPosition) {
+				double nanosPerStep = (double) (now - lastNanos) / Math.abs(position[0] - lastPosition);
+				delay = Math.max(minPollNanos,
+						Math.min(maxPollNanos, (long) (nanosPerStep * Math.abs(target - (long) position[0]) / 2)));
+			}
+			lastNanos = now;
+			lastPosition = position[0];
+			LockSupport.parkNanos(delay);
+		}
+	}
+}
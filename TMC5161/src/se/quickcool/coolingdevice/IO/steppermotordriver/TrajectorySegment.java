@@ -0,0 +1,69 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+/**
+ * This class is one move of a trajectory: the position to go to and the
+ * maximum velocity and acceleration of the ramp that takes the motor there.
+ * The values are in the units of the ramp generator registers XTARGET, VMAX and
+ * AMAX, i.e. microsteps, with {@value StepperMotorControl#MICROSTEPS_PER_REVOLUTION}
+ * microsteps per revolution.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ * @see TrajectoryQueue
+ */
+public final class TrajectorySegment {
+	private static final int MAX_VMAX = (1 << 23) - 512, MAX_AMAX = (1 << 16) - 1; // TMC datasheet p. 35
+
+	private final int targetPosition;
+	private final int maxVelocity;
+	private final int maxAcceleration;
+
+	/**
+	 * @param targetPosition  target position XTARGET in microsteps
+	 * @param maxVelocity     maximum velocity VMAX, 1 to 8388096
+	 * @param maxAcceleration maximum acceleration AMAX, 1 to 65535
+	 */
+	public TrajectorySegment(int targetPosition, int maxVelocity, int maxAcceleration) {
+		if (maxVelocity < 1 || maxVelocity > MAX_VMAX) {
+			throw new IllegalArgumentException("Invalid maximum velocity: " + maxVelocity);
+		}
+		if (maxAcceleration < 1 || maxAcceleration > MAX_AMAX) {
+			throw new IllegalArgumentException("Invalid maximum acceleration: " + maxAcceleration);
+		}
+		this.targetPosition = targetPosition;
+		this.maxVelocity = maxVelocity;
+		this.maxAcceleration = maxAcceleration;
+	}
+
+	/**
+	 * Creates a segment whose maximum velocity is given in <i>Rotations per
+	 * Second</i>, like {@link StepperMotor#setNewTargetVelocity(double)}.
+	 *
+	 * @param targetPosition  target position XTARGET in microsteps
+	 * @param rps             maximum velocity in rotations per second
+	 * @param maxAcceleration maximum acceleration AMAX, 1 to 65535
+	 * @return the segment
+	 */
+	public static TrajectorySegment withRps(int targetPosition, double rps, int maxAcceleration) {
+		return new TrajectorySegment(targetPosition, (int) (StepperMotorControl.MICROSTEPS_PER_REVOLUTION * rps),
+				maxAcceleration);
+	}
+
+	public int getTargetPosition() {
+		return targetPosition;
+	}
+
+	public int getMaxVelocity() {
+		return maxVelocity;
+	}
+
+	public int getMaxAcceleration() {
+		return maxAcceleration;
+	}
+
+	@Override
+	public String toString() {
+		return "TrajectorySegment[XTARGET=" + targetPosition + ", VMAX=" + maxVelocity + ", AMAX=" + maxAcceleration
+				+ "]";
+	}
+}
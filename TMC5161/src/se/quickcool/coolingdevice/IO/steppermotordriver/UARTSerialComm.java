@@ -2,6 +2,8 @@ package se.quickcool.coolingdevice.IO.steppermotordriver;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import com.fazecast.jSerialComm.SerialPort;
 import com.fazecast.jSerialComm.SerialPortDataListener;
@@ -10,60 +12,128 @@ import com.fazecast.jSerialComm.SerialPortEvent;
 /**
  * This class is responsible for sending the physical bytes across the serial
  * interface to the TMC using a library called JSerialComm which enables serial
- * communication from within Java.
+ * communication from within Java. It is the {@link SerialTransport} of a bus on
+ * a real serial port.
  * 
  * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
  * @version 1.0
  */
-class UARTSerialComm implements SerialPortDataListener {
+class UARTSerialComm implements SerialTransport, SerialPortDataListener {
+	private static final int BITS_PER_UART_BYTE = 9; // start bit + 8 data bits, the stop bits come on top
+
 	private SerialPort serialPort;
-	private MotorDriverCommunication mdc;
+	private String portName;
+	private final int initialBaudRate;
+	private final int stopBits;
+	private ByteListener listener;
+	private final byte[] readBuffer = new byte[64]; // only touched by the callback thread
+
+	private static String libraryVersion; // null until the native library has been loaded
 
-	UARTSerialComm(MotorDriverCommunication mdc) {
-		this.mdc = mdc;
+	/**
+	 * @param portName system name of the serial port, or null for the first port
+	 */
+	UARTSerialComm(String portName) {
+		this(new SerialSettings(portName));
+	}
+
+	/**
+	 * @param settings port name, baud rate and stop bits, copied so that later
+	 *                 changes do not affect this port
+	 */
+	UARTSerialComm(SerialSettings settings) {
+		this.portName = settings.getPortName();
+		this.initialBaudRate = settings.getBaudRate();
+		this.stopBits = settings.getStopBits();
 	}
 
 	/**
 	 * This function initializes the serial port through which communication with
-	 * the TMC occurs. The serial port is then configured with baud rate and stop
-	 * bits after which it is opened. Lastly, the callback function is added to this
-	 * class.
+	 * the TMC occurs. The serial port is configured with baud rate and stop bits
+	 * after which it is opened. Lastly, the callback function is added to this
+	 * class, which passes the received bytes on to the listener.
 	 * 
+	 * @param listener receives the bytes from the TMC
 	 * @throws CommunicationException
 	 */
-	void initSerialPort() throws CommunicationException {
-		System.out.println("\nUsing Library Version v" + SerialPort.getVersion());
+	@Override
+	public void open(ByteListener listener) throws CommunicationException {
+		open(listener, new StartupTiming(getName()));
+	}
 
-		SerialPort[] ports = SerialPort.getCommPorts();
+	/**
+	 * Opens the serial port like {@link #open(ByteListener)} and records how long
+	 * each step takes.
+	 * <p>
+	 * A port with a name is opened directly through its system name, e.g. "ttyS1"
+	 * or "COM3", or its full path, e.g. a stable /dev/serial/by-id/ link, without
+	 * enumerating the ports of the computer. Only if no name was given are the
+	 * ports enumerated and the first one is taken. The native library of
+	 * jSerialComm is loaded only once per process, see {@link #loadLibrary()}.
+	 * </p>
+	 */
+	@Override
+	public void open(ByteListener listener, StartupTiming timing) throws CommunicationException {
+		loadLibrary();
+		timing.mark("library");
 
-		if (ports.length == 0) {
-			throw new CommunicationException("\nNo available ports\n");
+		SerialPort serialPort;
+		if (portName != null) {
+			try {
+				serialPort = SerialPort.getCommPort(portName);
+			} catch (RuntimeException e) {
+				throw new CommunicationException("No port named " + portName);
+			}
 		} else {
-			System.out.println("\nAvailable Ports:\n");
-		}
-
-		for (int i = 0; i < ports.length; ++i) {
-			System.out.println(
-					"   [" + i + "] " + ports[i].getSystemPortName() + ": " + ports[i].getDescriptivePortName());
+			SerialPort[] ports = SerialPort.getCommPorts();
+			if (ports.length == 0) {
+				throw new CommunicationException("\nNo available ports\n");
+			}
+			if (DriverLog.isEnabled(LogLevel.DEBUG)) {
+				DriverLog.debug("Available Ports:");
+				for (int i = 0; i < ports.length; ++i) {
+					DriverLog.debug(
+							"   [" + i + "] " + ports[i].getSystemPortName() + ": " + ports[i].getDescriptivePortName());
+				}
+			}
+			// We are using the Host OS serial port (COM2) which we have mapped to
+			// "/dev/ttyS1" inside Virtual Box
+			serialPort = ports[0]; // ttyS1
 		}
+		timing.mark("port lookup");
 
-		// We are using the Host OS serial port (COM2) which we have mapped to
-		// "/dev/ttyS1" inside Virtual Box
-		SerialPort serialPort = ports[0]; // ttyS1
-		serialPort.setBaudRate(115200);
-		serialPort.setNumStopBits(SerialPort.ONE_STOP_BIT);
+		serialPort.setBaudRate(initialBaudRate);
+		serialPort.setNumStopBits(stopBits == 2 ? SerialPort.TWO_STOP_BITS : SerialPort.ONE_STOP_BIT);
 
 		boolean opened = serialPort.openPort();
-		System.out.println("\nOpening " + serialPort.getSystemPortName() + ": " + opened);
+		DriverLog.info("Opening " + serialPort.getSystemPortName() + ": " + opened);
+		timing.mark("open port");
 
 		if (!opened) {
 			throw new CommunicationException("Failed to open COM-port");
 		} else {
-			System.out.println("COM-port is open");
+			DriverLog.info("COM-port is open");
 		}
 
 		this.serialPort = serialPort;
+		this.listener = listener;
 		serialPort.addDataListener(this);
+		timing.mark("listener");
+	}
+
+	/**
+	 * Loads the native library of jSerialComm, which is extracted to a temporary
+	 * directory and loaded the first time the SerialPort class is used. This
+	 * happens only once per process, however many ports are opened.
+	 * 
+	 * @return version of the library
+	 */
+	static synchronized String loadLibrary() {
+		if (libraryVersion == null) {
+			libraryVersion = SerialPort.getVersion();
+			DriverLog.info("Using Library Version v" + libraryVersion);
+		}
+		return libraryVersion;
 	}
 
 	/**
@@ -72,10 +142,32 @@ class UARTSerialComm implements SerialPortDataListener {
 	 * 
 	 * @return true if port successfully closed, false otherwise
 	 */
-	boolean closeSerialPort() {
+	@Override
+	public boolean close() {
 		return serialPort.closePort();
 	}
 
+	/**
+	 * Changes the baud rate of the open port. The TMC adapts to the new rate with
+	 * the next datagram it receives.
+	 */
+	@Override
+	public boolean setBaudRate(int baudRate) {
+		boolean changed = serialPort.setBaudRate(baudRate);
+		DriverLog.info("Baud rate of " + getName() + " set to " + baudRate + ": " + changed);
+		return changed;
+	}
+
+	@Override
+	public int getBaudRate() {
+		return serialPort != null ? serialPort.getBaudRate() : initialBaudRate;
+	}
+
+	@Override
+	public String getName() {
+		return portName != null ? portName : "default";
+	}
+
 	@Override
 	/**
 	 * Returns the serial event we that the callback functions triggers on which in
@@ -92,12 +184,8 @@ class UARTSerialComm implements SerialPortDataListener {
 	 * every time there is any data available at the serial port after a Read Access
 	 * request has been sent to the TMC.
 	 * <p>
-	 * For ordinary synchronized methods, the lock will be the object on which the
-	 * method is being invoked, in this case the method is invoked on the class
-	 * StepperMotorControl. Every Java object has an associated lock. Java locks can
-	 * be held by no more than one thread at a time. The thread has to acquire the
-	 * lock. Only one thread executes synchronized code protected by a given lock at
-	 * one time.
+	 * The available bytes are not necessarily one complete reply package. They are
+	 * passed on to the listener as they are; the bus reassembles the packages.
 	 * </p>
 	 */
 	@Override
@@ -109,39 +197,15 @@ class UARTSerialComm implements SerialPortDataListener {
 		 * info about the event.
 		 */
 		if (event.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
-			byte[] newData = new byte[serialPort.bytesAvailable()];
-
-			int numRead = serialPort.readBytes(newData, newData.length);
-			if (numRead == 4 || numRead == 8) {
-				System.out.println("\nRead " + numRead + " available bytes.");
-				System.out.println("Received bytes: " + "[" + getDataBytesString(newData) + "]");
-			}
-
-			mdc.setNewData(newData);
-		}
-	}
-
-	private String getDataBytesString(byte[] data) {
-		StringBuilder res;
-		String dataBytes = "";
-		for (int i = 0; i < data.length; i++) {
-			res = new StringBuilder(Integer.toHexString(Byte.toUnsignedInt(data[i])).toUpperCase());
-			if (i < 7) {
-				if (res.length() == 1) {
-					dataBytes += "0x0" + Integer.toHexString(Byte.toUnsignedInt(data[i])).toUpperCase() + ", ";
-				} else {
-					dataBytes += "0x" + Integer.toHexString(Byte.toUnsignedInt(data[i])).toUpperCase() + ", ";
-				}
-			}
-			if (i >= 7) {
-				if (res.length() == 1) {
-					dataBytes += "0x0" + Integer.toHexString(Byte.toUnsignedInt(data[i])).toUpperCase();
-				} else {
-					dataBytes += "0x" + Integer.toHexString(Byte.toUnsignedInt(data[i])).toUpperCase();
+			int bytesAvailable;
+			while ((bytesAvailable = serialPort.bytesAvailable()) > 0) {
+				int numRead = serialPort.readBytes(readBuffer, Math.min(bytesAvailable, readBuffer.length));
+				if (numRead <= 0) {
+					break;
 				}
+				listener.bytesReceived(readBuffer, 0, numRead);
 			}
 		}
-		return dataBytes;
 	}
 
 	/**
@@ -154,26 +218,62 @@ class UARTSerialComm implements SerialPortDataListener {
 	 * to the structure outlined in the TMC datasheet. The CRC checksum of the
 	 * package is computed as a control measure to verify intact data arrival.
 	 * <p>
+	 * A single datagram is sent like a burst of one: the function only waits for
+	 * as long as it takes to shift the 8 bytes out at the configured baud rate,
+	 * rather than sleeping a fixed time. Whether the write has arrived is
+	 * confirmed through IFCNT by the layers above if acknowledged writes are
+	 * enabled.
+	 * </p>
+	 * <p>
 	 * <b>Note:</b> The TMC5161 takes a 64-bit data package for Write Access: 8 sync
 	 * + reserved, 8 slave address, 8 register address, 32-bit data, 8 CRC
 	 * </p>
 	 * 
 	 * @param registerAddress The address of the register that is to be written to
-	 * @param datagram        32-bit data value which to be written to the register
-	 *                        address
+	 * @param buf             encoded datagram
 	 */
-	void uartWriteAccess(byte registerAddress, byte[] buf) {
-		serialPort.writeBytes(buf, buf.length); // write datagram for Write Access
-		System.out.println("Sent bytes: " + "[" + getDataBytesString(buf) + "]");
+	@Override
+	public void writeAccess(byte registerAddress, byte[] buf) {
+		writeBatch(buf, buf.length); // paced by the transmission time like any burst
+	}
+
+	/**
+	 * Transfers several back-to-back Write Access datagrams with one single write
+	 * to the serial port. Rather than sleeping a fixed time after every datagram,
+	 * the function only waits for as long as it takes to shift the bytes out at the
+	 * configured baud rate, so that the next datagram on the wire cannot run into
+	 * this burst.
+	 * 
+	 * @param buf    encoded datagrams
+	 * @param length number of bytes in buf that are to be sent
+	 */
+	@Override
+	public void writeBatch(byte[] buf, int length) {
+		serialPort.writeBytes(buf, length);
+		if (DriverLog.isEnabled(LogLevel.TRACE)) {
+			for (int off = 0; off < length; off += DatagramEncoder.WRITE_ACCESS_LENGTH) {
+				DriverLog.frame(LogLevel.TRACE, "Sent bytes:", buf, off,
+						Math.min(DatagramEncoder.WRITE_ACCESS_LENGTH, length - off));
+			}
+		}
 
-		OutputStream os = serialPort.getOutputStream();
 		try {
-			os.flush(); // wait until all data are written
-			os.close();
+			serialPort.getOutputStream().flush();
 		} catch (IOException e) {
-			e.printStackTrace();
+			DriverLog.warn("Failed to flush " + getName() + ": " + e);
 		}
-		delayMillis(5); // TODO normal is 5, unfortunately not possible to reduce or remove delay
+		LockSupport.parkNanos(transmissionNanos(length));
+	}
+
+	/**
+	 * Returns the time it takes to shift a number of bytes across the UART
+	 * interface at the current baud rate.
+	 * 
+	 * @param bytes number of bytes
+	 * @return transmission time in nanoseconds
+	 */
+	long transmissionNanos(int bytes) {
+		return TimeUnit.SECONDS.toNanos(bytes * (BITS_PER_UART_BYTE + stopBits)) / serialPort.getBaudRate();
 	}
 
 	/**
@@ -183,29 +283,26 @@ class UARTSerialComm implements SerialPortDataListener {
 	 * TMC5161 registers. If the package is valid, this will trigger a reply from
 	 * the TMC5161. The reply package which will contain the value of the read
 	 * register is received in the callback function.
+	 * <p>
+	 * <b>Note:</b> All access functions are only invoked by the I/O thread of the
+	 * bus, so datagrams never interleave on the wire.
+	 * </p>
 	 * 
 	 * @param buf             The byte buffer that is to be sent to the TMC
 	 * @param registerAddress The address of the register that is to be read from
 	 */
-	void uartReadAccess(byte registerAddress, byte[] buf) {
+	@Override
+	public void readAccess(byte registerAddress, byte[] buf) {
 		OutputStream os = serialPort.getOutputStream();
 
 		serialPort.writeBytes(buf, buf.length); // write datagram for Read Access
+		DriverLog.frame(LogLevel.TRACE, "Sent request:", buf, 0, buf.length);
 
 		try {
 			os.flush(); // wait until all data is written
 			os.close();
 		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void delayMillis(int delayTimeMillis) {
-		try {
-			Thread.sleep(delayTimeMillis);
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			DriverLog.warn("Failed to flush " + getName() + ": " + e);
 		}
 	}
 }
@@ -0,0 +1,109 @@
+package se.quickcool.coolingdevice.IO.steppermotordriver;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is the result of a {@link RegisterVerification}: how many
+ * registers were checked and which of them did not hold the expected value.
+ *
+ * @author Danial Mahmoud <<i>danial.mahmoud@quickcool.se</i>>
+ * @version 1.0
+ */
+final class VerificationReport {
+	/**
+	 * A register whose masked value differs from the expected value.
+	 */
+	static final class Mismatch {
+		private final byte registerAddress;
+		private final int expectedValue;
+		private final int actualValue;
+		private final int mask;
+
+		Mismatch(byte registerAddress, int expectedValue, int actualValue, int mask) {
+			this.registerAddress = registerAddress;
+			this.expectedValue = expectedValue;
+			this.actualValue = actualValue;
+			this.mask = mask;
+		}
+
+		byte getRegisterAddress() {
+			return registerAddress;
+		}
+
+		int getExpectedValue() {
+			return expectedValue;
+		}
+
+		/**
+		 * @return the complete value that was read, including the unchecked bits
+		 */
+		int getActualValue() {
+			return actualValue;
+		}
+
+		int getMask() {
+			return mask;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder(String.format("0x%02X", registerAddress)).append(": expected ")
+					.append(HexFormatter.formatRegister(expectedValue)).append(", read ")
+					.append(HexFormatter.formatRegister(actualValue));
+			if (mask != RegisterVerification.ALL_BITS) {
+				text.append(" (mask ").append(HexFormatter.formatRegister(mask)).append(')');
+			}
+			return text.toString();
+		}
+	}
+
+	private final int checkedRegisters;
+	private final List<Mismatch> mismatches;
+	private final long durationNanos;
+
+	VerificationReport(int checkedRegisters, List<Mismatch> mismatches, long durationNanos) {
+		this.checkedRegisters = checkedRegisters;
+		this.mismatches = Collections.unmodifiableList(mismatches);
+		this.durationNanos = durationNanos;
+	}
+
+	/**
+	 * @return true if every register held its expected value
+	 */
+	boolean isPassed() {
+		return mismatches.isEmpty();
+	}
+
+	int getCheckedRegisters() {
+		return checkedRegisters;
+	}
+
+	/**
+	 * @return the registers that did not match, in the order they were added
+	 */
+	List<Mismatch> getMismatches() {
+		return mismatches;
+	}
+
+	/**
+	 * @return time in nanoseconds that it took to read all registers
+	 */
+	long getDurationNanos() {
+		return durationNanos;
+	}
+
+	@Override
+	public String toString() {
+		if (isPassed()) {
+			return checkedRegisters + " registers verified";
+		}
+		StringBuilder text = new StringBuilder().append(mismatches.size()).append(" of ").append(checkedRegisters)
+				.append(" registers differ:");
+		for (Mismatch mismatch : mismatches) {
+			text.append(' ').append(mismatch).append(';');
+		}
+		text.setLength(text.length() - 1);
+		return text.toString();
+	}
+}
@@ -1,8 +1,8 @@
 package user;
 
 import se.quickcool.coolingdevice.IO.steppermotordriver.CommunicationException;
-import se.quickcool.coolingdevice.IO.steppermotordriver.DataCorruptException;
 import se.quickcool.coolingdevice.IO.steppermotordriver.DriverErrorException;
+import se.quickcool.coolingdevice.IO.steppermotordriver.MotorSupervisor;
 import se.quickcool.coolingdevice.IO.steppermotordriver.StepperMotor;
 
 /*
@@ -27,40 +27,29 @@ public class StepperMotorUser {
 			stepperMotor.enableStallguardException(true);
 		} catch (CommunicationException | DriverErrorException e) {
 			System.out.println("Exception thrown: " + e.getLocalizedMessage());
-			if (e.getLocalizedMessage().equals("Stall detected!")
-					|| e.getLocalizedMessage().equals("Overtemperature pre-warning threshold is exceeded")) {
-			} else {
-				System.out.println("Resetting motor ... \n");
-				stepperMotor.resetMotor(2.5);
-				stepperMotor.enableStallguardException(true);
+			if (MotorSupervisor.RESET_UNLESS_STALL_OR_PREWARNING.resetAfter(e)) {
+				resetMotor(stepperMotor);
 			}
 		}
 
-		while (true) {
-			long start = System.currentTimeMillis();
-			try {
-				stepperMotor.checkMotorStatus();
-			} catch (CommunicationException | DataCorruptException | DriverErrorException e) {
-				System.out.println("Exception thrown: " + e.getLocalizedMessage());
-				if (e.getLocalizedMessage().equals("Stall detected!")
-						|| e.getLocalizedMessage().equals("Overtemperature pre-warning threshold is exceeded")) {
-				} else {
-					System.out.println("Resetting motor ... \n");
-					stepperMotor.resetMotor(2.5);
-					stepperMotor.enableStallguardException(true);
-				}
-			}
-			stepperMotor.resetPositionCounter();
-
-			long stop = System.currentTimeMillis();
-			System.out.println("Elapsed time: " + (stop - start) / 1000 + " seconds");
+		// check the motor once per second until the program is terminated
+		MotorSupervisor supervisor = new MotorSupervisor();
+		supervisor.supervise(stepperMotor, 1000, 2.5);
 
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		try {
+			Thread.currentThread().join();
+		} catch (InterruptedException e) {
+			supervisor.shutdown();
 		}
+	}
 
+	private static void resetMotor(StepperMotor stepperMotor) {
+		System.out.println("Resetting motor ... \n");
+		try {
+			stepperMotor.resetMotor(2.5);
+		} catch (CommunicationException e) {
+			System.out.println("Exception thrown: " + e.getLocalizedMessage());
+		}
+		stepperMotor.enableStallguardException(true);
 	}
 }